@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Example: source ./load.sh flightDB 5432 user
+# Rebuilds the tables from ../sql/create.sql and streams ../data/*.csv from this machine
+java $JAVA_OPTS -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER ../sql ../data
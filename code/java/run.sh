@@ -4,4 +4,5 @@ PORT=$2
 USER=$3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+# Pool settings go in JAVA_OPTS, e.g. JAVA_OPTS="-Dcruise.pool.maxSize=16"
+java $JAVA_OPTS -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
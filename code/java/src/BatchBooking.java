@@ -0,0 +1,233 @@
+/*
+ * Batch booking from a file
+ * =========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class books a whole file of ccid,cid requests. Requests are grouped
+ * by cruise and each cruise is booked in one transaction: the cruise row is
+ * locked once, the cruise's existing waitlist is promoted first in rnum
+ * order, the first requests in file order get R while seats remain and
+ * the rest W, num_sold is raised once, and the reservations go in as one
+ * JDBC batch. Every input row gets an outcome line and every cruise batch
+ * a throughput line in the report.
+ *
+ */
+
+public class BatchBooking {
+	private static final String LOCK_CRUISE =
+		"SELECT S.seats - C.num_sold, " +
+		"CASE WHEN EXISTS (SELECT 1 FROM Reservation W WHERE W.cid = C.cnum AND W.status = 'W') THEN 1 ELSE 0 END " +
+		"FROM CruiseInfo CI, Cruise C, Ship S " +
+		"WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.cnum = ? FOR UPDATE OF C";
+	private static final String TAKE_SEATS =
+		"UPDATE Cruise SET num_sold = num_sold + ? WHERE cnum = ? RETURNING num_sold";
+	private static final String KNOWN_CUSTOMERS =
+		"SELECT id FROM Customer WHERE id = ANY (?)";
+	private static final String INSERT =
+		"INSERT INTO Reservation (rnum, ccid, cid, status) VALUES (?, ?, ?, ?)";
+
+	/**
+	 * Totals of one batch run.
+	 */
+	public static class Summary {
+		public int rows = 0;
+		public int reserved = 0;
+		public int waitlisted = 0;
+		public int rejected = 0;
+		public double seconds = 0;
+
+		public String toString() {
+			return String.format("%d rows: %d reserved, %d waitlisted, %d rejected in %.2f s (%.1f rows/sec)",
+				rows, reserved, waitlisted, rejected, seconds, seconds == 0 ? 0.0 : rows / seconds);
+		}
+	}
+
+	/**
+	 * Books every request read from input. Blank lines, # comments and a
+	 * ccid,cid header are skipped.
+	 *
+	 * @param esql the database connection
+	 * @param input the ccid,cid requests
+	 * @param outcomes receives a line,ccid,cid,status,rnum CSV row per request
+	 * @param report receives one throughput line per cruise batch
+	 * @return the totals of the run
+	 * @throws java.io.IOException when the input cannot be read
+	 */
+	public static Summary run(DBproject esql, BufferedReader input, PrintWriter outcomes, PrintWriter report) throws IOException {
+		Summary summary = new Summary();
+		long start = System.nanoTime();
+
+		// read requests, keeping file order inside each cruise
+		List<int[]> requests = new ArrayList<int[]>();
+		LinkedHashMap<Integer, List<Integer>> byCruise = new LinkedHashMap<Integer, List<Integer>>();
+		outcomes.println("line,ccid,cid,status,rnum");
+		String line;
+		int lineNumber = 0;
+		while ((line = input.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#") || line.toLowerCase().startsWith("ccid")) {
+				continue;
+			}
+			summary.rows++;
+			String[] fields = line.split(",");
+			int ccid;
+			int cid;
+			try {
+				if (fields.length != 2) {
+					throw new NumberFormatException();
+				}
+				ccid = Integer.parseInt(fields[0].trim());
+				cid = Integer.parseInt(fields[1].trim());
+			} catch (NumberFormatException e) {
+				summary.rejected++;
+				outcomes.println(lineNumber + ",,,INVALID,");
+				continue;
+			}
+			int[] request = { lineNumber, ccid, cid };
+			requests.add(request);
+			List<Integer> group = byCruise.get(cid);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				byCruise.put(cid, group);
+			}
+			group.add(requests.size() - 1);
+		}
+
+		for (Map.Entry<Integer, List<Integer>> entry : byCruise.entrySet()) {
+			bookCruise(esql, entry.getKey(), entry.getValue(), requests, outcomes, report, summary);
+		}
+
+		summary.seconds = (System.nanoTime() - start) / 1e9;
+		outcomes.flush();
+		report.flush();
+		return summary;
+	}
+
+	// books one cruise's requests in a single transaction
+	private static void bookCruise(DBproject esql, int cid, List<Integer> group, List<int[]> requests, PrintWriter outcomes, PrintWriter report, Summary summary) {
+		long start = System.nanoTime();
+		int[] customers = new int[group.size()];
+		for (int i = 0; i < customers.length; i++) {
+			customers[i] = requests.get(group.get(i))[1];
+		}
+
+		String[] status = new String[customers.length];
+		int[] rnums = new int[customers.length];
+		String failure = null;
+		int reserved = 0;
+		int waitlisted = 0;
+		try {
+			// before the cruise row is locked, so a block refill never waits with the lock held;
+			// numbers of requests that are not booked only leave a gap
+			for (int i = 0; i < customers.length; i++) {
+				rnums[i] = esql.reservationIds().nextInt();
+			}
+			esql.beginTransaction();
+
+			TypedResult cruise = esql.executeQueryAndReturnTyped(LOCK_CRUISE, cid);
+			if (cruise.size() == 0) {
+				esql.rollbackTransaction();
+				Arrays.fill(status, "NO_CRUISE");
+			} else {
+				// unknown customers would fail the whole batch on the foreign key
+				TypedResult known = esql.executeQueryAndReturnTyped(KNOWN_CUSTOMERS, customers);
+				HashSet<Integer> knownIDs = new HashSet<Integer>();
+				for (int row = 0; row < known.size(); row++) {
+					knownIDs.add(known.getInt(row, 0));
+				}
+
+				int free = Math.max(0, cruise.getInt(0, 0));
+				int sold = -1;
+				TypedResult promoted = null;
+				if (free > 0 && cruise.getInt(0, 1) == 1) {
+					// earlier W reservations take free seats before any request of this batch
+					promoted = WaitlistPromoter.promoteRows(esql, cid);
+					if (promoted.size() > 0) {
+						sold = promoted.getInt(0, 1);
+						free -= promoted.getInt(0, 2);
+					}
+				}
+				int valid = 0;
+				for (int i = 0; i < customers.length; i++) {
+					if (!knownIDs.contains(customers[i])) {
+						status[i] = "NO_CUSTOMER";
+					} else if (reserved < free) {
+						status[i] = "R";
+						reserved++;
+						valid++;
+					} else {
+						status[i] = "W";
+						waitlisted++;
+						valid++;
+					}
+				}
+
+				if (valid > 0) {
+					List<Object[]> rows = new ArrayList<Object[]>(valid);
+					for (int i = 0; i < customers.length; i++) {
+						if (status[i].equals("R") || status[i].equals("W")) {
+							rows.add(new Object[] { rnums[i], customers[i], cid, status[i] });
+						}
+					}
+					esql.executeBatch(INSERT, rows);
+				}
+
+				if (reserved > 0) {
+					sold = esql.executeQueryAndReturnTyped(TAKE_SEATS, reserved, cid).getInt(0, 0);
+				}
+				esql.commitTransaction();
+
+				if (promoted != null) {
+					WaitlistPromoter.promoted(esql, promoted);
+				}
+				if (sold >= 0) {
+					esql.inventory().setSold(cid, sold);
+				}
+				esql.counters().add(cid, "R", reserved);
+				esql.counters().add(cid, "W", waitlisted);
+				if (waitlisted > 0) {
+					esql.inventory().setFull(cid);
+				}
+			}
+		} catch (SQLException e) {
+			esql.rollbackTransaction();
+			failure = e.getMessage();
+			Arrays.fill(status, "ERROR");
+			reserved = 0;
+			waitlisted = 0;
+		}
+
+		for (int i = 0; i < customers.length; i++) {
+			int[] request = requests.get(group.get(i));
+			boolean booked = status[i].equals("R") || status[i].equals("W");
+			outcomes.println(request[0] + "," + request[1] + "," + request[2] + "," + status[i] + "," + (booked ? Integer.toString(rnums[i]) : ""));
+			if (!booked) {
+				summary.rejected++;
+			}
+		}
+		summary.reserved += reserved;
+		summary.waitlisted += waitlisted;
+
+		double ms = (System.nanoTime() - start) / 1e6;
+		report.println(String.format("cruise %d: %d rows, %d R, %d W in %.1f ms (%.1f rows/sec)%s",
+			cid, customers.length, reserved, waitlisted, ms, ms == 0 ? 0.0 : customers.length * 1000.0 / ms,
+			failure == null ? "" : " failed: " + failure.replace('\n', ' ')));
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Benchmarks for the DBproject operations
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks every menu operation and the raw DBproject helpers against a
+ * scratch database. For each data size the database is reloaded from
+ * code/data with BulkLoader, Reservation, Repairs and Schedule are copied
+ * scale times over, and each benchmark runs warmup and measurement
+ * iterations of a fixed duration, the way JMH's average-time mode does.
+ * Results are written as JSON in the layout of JMH's -rf json output, so
+ * the usual JMH tooling can compare runs.
+ *
+ * This drops and reloads every table, so never point it at a real database.
+ *
+ */
+
+public class Benchmarks {
+	/**
+	 * One benchmarked operation; i counts invocations within the run.
+	 */
+	interface Op {
+		void run(int i) throws Exception;
+	}
+
+	private static final RowHandler DISCARD = new RowHandler() {
+		public void row(ResultSet rs) throws SQLException {
+			rs.getString(1);
+		}
+	};
+
+	private final DBproject esql;
+	private final int warmup;
+	private final int iterations;
+	private final long iterationMillis;
+	private final Random random = new Random(42);
+	private final List<String> results = new ArrayList<String>();
+
+	// sample data drawn from the loaded tables
+	private int[] customers;
+	private int[] cruises;
+	private int[] departureCruises;
+	private LocalDate[] departures;
+	private int nextShip;
+	private int nextCaptain;
+	private int nextCruise;
+
+	Benchmarks(DBproject esql, int warmup, int iterations, long iterationMillis) {
+		this.esql = esql;
+		this.warmup = warmup;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + Benchmarks.class.getName() +
+				" <dbname> <port> <user> [--scale 1,10] [--warmup 3] [--iterations 5] [--time-ms 1000]" +
+				" [--only <name prefix>] [--out bench-results.json] [--sql ../sql] [--data ../data]");
+			return;
+		}
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			options.put(args[i], args[i + 1]);
+		}
+		String[] scales = value(options, "--scale", "1").split(",");
+		String only = value(options, "--only", "");
+		File out = new File(value(options, "--out", "bench-results.json"));
+
+		DBproject.status = System.err;
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			Benchmarks bench = new Benchmarks(esql, Integer.parseInt(value(options, "--warmup", "3")),
+				Integer.parseInt(value(options, "--iterations", "5")), Long.parseLong(value(options, "--time-ms", "1000")));
+			for (String scale : scales) {
+				bench.seed(new File(value(options, "--sql", "../sql")), new File(value(options, "--data", "../data")), Integer.parseInt(scale.trim()));
+				bench.runAll(scale.trim(), only);
+			}
+			bench.write(out);
+			System.err.println("Results written to " + out);
+		} finally {
+			esql.cleanup();
+		}
+	}
+
+	private static String value(Map<String, String> options, String name, String fallback) {
+		String value = options.get(name);
+		return value == null ? fallback : value;
+	}
+
+	/**
+	 * Reloads the data and multiplies the large tables by scale.
+	 */
+	void seed(File sqlDir, File dataDir, int scale) throws Exception {
+		System.err.println("Seeding scale " + scale);
+		BulkLoader.load(esql, sqlDir, dataDir, 4);
+		if (scale > 1) {
+			esql.executeUpdate("INSERT INTO Reservation (rnum, ccid, cid, status) " +
+				"SELECT R.rnum + k * M.m, R.ccid, R.cid, R.status FROM Reservation R, generate_series(1, ?) k, (SELECT MAX(rnum) + 1 AS m FROM Reservation) M", scale - 1);
+			esql.executeUpdate("INSERT INTO Repairs (rid, repair_date, repair_code, captain_id, ship_id, technician_id) " +
+				"SELECT R.rid + k * M.m, R.repair_date, R.repair_code, R.captain_id, R.ship_id, R.technician_id FROM Repairs R, generate_series(1, ?) k, (SELECT MAX(rid) + 1 AS m FROM Repairs) M", scale - 1);
+			esql.executeUpdate("INSERT INTO Schedule (id, cruiseNum, departure_time, arrival_time) " +
+				"SELECT S.id + k * M.m, S.cruiseNum, S.departure_time + k, S.arrival_time + k FROM Schedule S, generate_series(1, ?) k, (SELECT MAX(id) + 1 AS m FROM Schedule) M", scale - 1);
+			esql.execute("SELECT setval('reservation_rnum_seq', (SELECT MAX(rnum) FROM Reservation) + 1, false)");
+			esql.reservationIds().reset();
+			esql.executeUpdate("ANALYZE");
+		}
+		// the caches the menu warms at startup
+		esql.inventory().warm(esql);
+		esql.counters().warm(esql);
+		esql.priceIndex().warm(esql);
+
+		customers = column(esql.executeQueryAndReturnTyped("SELECT id FROM Customer"));
+		cruises = column(esql.executeQueryAndReturnTyped("SELECT cruise_id FROM CruiseInfo"));
+		TypedResult schedule = esql.executeQueryAndReturnTyped("SELECT cruiseNum, departure_time - DATE '1970-01-01' FROM Schedule ORDER BY id LIMIT 10000");
+		departureCruises = new int[schedule.size()];
+		departures = new LocalDate[schedule.size()];
+		for (int row = 0; row < schedule.size(); row++) {
+			departureCruises[row] = schedule.getInt(row, 0);
+			departures[row] = LocalDate.ofEpochDay(schedule.getInt(row, 1));
+		}
+		nextShip = esql.executeQueryAndReturnTyped("SELECT MAX(id) + 1 FROM Ship").getInt(0, 0);
+		nextCaptain = esql.executeQueryAndReturnTyped("SELECT MAX(id) + 1 FROM Captain").getInt(0, 0);
+		nextCruise = esql.executeQueryAndReturnTyped("SELECT MAX(cnum) + 1 FROM Cruise").getInt(0, 0);
+	}
+
+	private static int[] column(TypedResult result) {
+		int[] values = new int[result.size()];
+		for (int row = 0; row < values.length; row++) {
+			values[row] = result.getInt(row, 0);
+		}
+		return values;
+	}
+
+	private int any(int[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	void runAll(String scale, String only) throws Exception {
+		Map<String, Op> ops = new LinkedHashMap<String, Op>();
+
+		// menu operations
+		ops.put("op.addShip", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.await(DBproject.addShip(esql, nextShip++, "Bench", "Bench model", 10, 200));
+			}
+		});
+		ops.put("op.addCaptain", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.await(DBproject.addCaptain(esql, nextCaptain++, "Bench Captain", "Nowhere"));
+			}
+		});
+		ops.put("op.addCruise", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.await(DBproject.addCruise(esql, nextCruise++, 500, 0, 1, "2030-01-01 10:00", "2030-01-02 10:00", "BENCH", "BENCH"));
+			}
+		});
+		ops.put("op.bookCruise", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.bookCruise(esql, any(customers), any(cruises));
+			}
+		});
+		ops.put("op.availableSeats", new Op() {
+			public void run(int i) throws Exception {
+				int d = random.nextInt(departures.length);
+				DBproject.availableSeats(esql, departureCruises[d], departures[d]);
+			}
+		});
+		ops.put("op.repairsPerShip", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.repairsPerShip(esql, DISCARD);
+			}
+		});
+		ops.put("op.passengersWithStatus", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.passengersWithStatus(esql, any(cruises), "W");
+			}
+		});
+		ops.put("op.addCustomer", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.await(DBproject.addCustomer(esql, "Bench", "Customer", "F", LocalDate.of(1980, 1, 1), "1 Bench Street", "92521", "9515551234"));
+			}
+		});
+		ops.put("op.cruisesUnderCost", new Op() {
+			public void run(int i) throws Exception {
+				DBproject.cruisesUnderCost(esql, 500, null, 20);
+			}
+		});
+		ops.put("op.departuresWithSeats", new Op() {
+			public void run(int i) throws Exception {
+				// a year of departures from a random scheduled day
+				LocalDate from = departures[random.nextInt(departures.length)];
+				DBproject.departuresWithSeats(esql, from, from.plusDays(365), 1);
+			}
+		});
+
+		// raw helpers, all on the availability join
+		final String seatQuery = "SELECT C.num_sold, S.seats FROM CruiseInfo CI, Cruise C, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND CI.cruise_id = ?";
+		ops.put("helper.executeQuery", new Op() {
+			public void run(int i) throws Exception {
+				esql.executeQuery(seatQuery, any(cruises));
+			}
+		});
+		ops.put("helper.executeQueryAndReturnResult", new Op() {
+			public void run(int i) throws Exception {
+				esql.executeQueryAndReturnResult(seatQuery, any(cruises));
+			}
+		});
+		ops.put("helper.executeQueryAndReturnTyped", new Op() {
+			public void run(int i) throws Exception {
+				esql.executeQueryAndReturnTyped(seatQuery, any(cruises));
+			}
+		});
+		ops.put("helper.executeQueryAndStream", new Op() {
+			public void run(int i) throws Exception {
+				esql.executeQueryAndStream(seatQuery, DISCARD, any(cruises));
+			}
+		});
+		ops.put("helper.executeUpdate", new Op() {
+			public void run(int i) throws Exception {
+				esql.executeUpdate("UPDATE Ship SET age = age WHERE id = ?", 0);
+			}
+		});
+		ops.put("helper.getCurrSeqVal", new Op() {
+			public void run(int i) throws Exception {
+				esql.getCurrSeqVal("reservation_rnum_seq");
+			}
+		});
+
+		// currval needs a nextval earlier in the same session
+		esql.pinConnection();
+		try {
+			esql.execute("SELECT nextval('reservation_rnum_seq')");
+			for (Map.Entry<String, Op> op : ops.entrySet()) {
+				if (op.getKey().startsWith(only)) {
+					measure(op.getKey(), scale, op.getValue());
+				}
+			}
+		} finally {
+			esql.unpinConnection();
+		}
+	}
+
+	// runs warmup and measurement iterations and records microseconds per op
+	private void measure(String name, String scale, Op op) throws Exception {
+		int invocation = 0;
+		for (int w = 0; w < warmup; w++) {
+			invocation = iteration(op, invocation, null);
+		}
+		double[] scores = new double[iterations];
+		for (int m = 0; m < iterations; m++) {
+			double[] score = new double[1];
+			invocation = iteration(op, invocation, score);
+			scores[m] = score[0];
+		}
+
+		double mean = 0;
+		for (double score : scores) mean += score;
+		mean /= scores.length;
+		double variance = 0;
+		for (double score : scores) variance += (score - mean) * (score - mean);
+		double stdev = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+		// 99.9% confidence half-width with the normal approximation
+		double error = scores.length > 1 ? 3.291 * stdev / Math.sqrt(scores.length) : Double.NaN;
+
+		System.err.println(String.format("%-40s scale=%-4s %12.3f +- %.3f us/op", name, scale, mean, error));
+
+		List<Object> raw = new ArrayList<Object>();
+		for (double score : scores) raw.add(score);
+		List<Object> forks = new ArrayList<Object>();
+		forks.add(raw);
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("scale", scale);
+		results.add(new Json()
+			.put("benchmark", "DBproject." + name)
+			.put("mode", "avgt")
+			.put("threads", 1)
+			.put("forks", 1)
+			.put("warmupIterations", warmup)
+			.put("warmupTime", iterationMillis + " ms")
+			.put("measurementIterations", iterations)
+			.put("measurementTime", iterationMillis + " ms")
+			.put("params", params)
+			.put("primaryMetric", new Json()
+				.put("score", mean)
+				.put("scoreError", Double.isNaN(error) ? "NaN" : error)
+				.put("scoreUnit", "us/op")
+				.put("rawData", forks))
+			.toString());
+	}
+
+	private int iteration(Op op, int invocation, double[] score) throws Exception {
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000L;
+		int count = 0;
+		long now;
+		do {
+			op.run(invocation++);
+			count++;
+			now = System.nanoTime();
+		} while (now < end);
+		if (score != null) {
+			score[0] = (now - start) / 1e3 / count;
+		}
+		return invocation;
+	}
+
+	void write(File out) throws Exception {
+		PrintWriter writer = new PrintWriter(new FileWriter(out));
+		try {
+			writer.println("[");
+			for (int i = 0; i < results.size(); i++) {
+				writer.println("\t" + results.get(i) + (i + 1 < results.size() ? "," : ""));
+			}
+			writer.println("]");
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Concurrent booking stress test
+ * ==============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress test for SeatBooking. Many threads book customers on one hot cruise
+ * at the same time, then the test checks that the cruise was not overbooked
+ * and that num_sold grew by exactly the number of new R and C reservations,
+ * and reports bookings per second. The cruise's waitlist is promoted before
+ * the run, so seats taken by that promotion are not counted against it; a
+ * booking can still promote earlier W reservations, so the seats the calls
+ * report are shown but not checked. It writes to the database, so run it against a
+ * scratch copy created by createPostgreDB.sh.
+ *
+ */
+
+public class BookingStress {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + BookingStress.class.getName() +
+				" <dbname> <port> <user> [threads] [bookings] [cruise number]");
+			return;
+		}
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		final int bookings = args.length > 4 ? Integer.parseInt(args[4]) : 2000;
+
+		// one connection per thread so that the cruise row is really contended
+		System.setProperty("cruise.pool.maxSize", Integer.toString(threads));
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		int exitCode = 0;
+		try {
+			// pick the cruise with the most free seats unless one was given
+			final int cruiseNumber;
+			if (args.length > 5) {
+				cruiseNumber = Integer.parseInt(args[5]);
+			} else {
+				cruiseNumber = esql.executeQueryAndReturnTyped(
+					"SELECT C.cnum FROM CruiseInfo CI, Cruise C, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id ORDER BY S.seats - C.num_sold DESC, C.cnum LIMIT 1").getInt(0, 0);
+			}
+
+			TypedResult customers = esql.executeQueryAndReturnTyped("SELECT id FROM Customer");
+			final int[] customerIDs = new int[customers.size()];
+			for (int i = 0; i < customerIDs.length; i++) {
+				customerIDs[i] = customers.getInt(i, 0);
+			}
+
+			// seats freed before the run go to the waitlist now, not to whoever books first
+			int swept = WaitlistPromoter.promote(esql, cruiseNumber);
+			if (swept > 0) {
+				System.out.println(String.format("Promoted %d waitlisted reservations before the run", swept));
+			}
+
+			TypedResult before = seatState(esql, cruiseNumber);
+			int seats = before.getInt(0, 0);
+			int soldBefore = before.getInt(0, 1);
+			long reservedBefore = before.getLong(0, 2);
+			System.out.println(String.format("Cruise %d: %d seats, %d sold, %d threads, %d bookings", cruiseNumber, seats, soldBefore, threads, bookings));
+
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger reserved = new AtomicInteger();
+			final AtomicInteger waitlisted = new AtomicInteger();
+			final AtomicInteger failed = new AtomicInteger();
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				workers[t] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						while (next.getAndIncrement() < bookings) {
+							int customerID = customerIDs[ThreadLocalRandom.current().nextInt(customerIDs.length)];
+							try {
+								SeatBooking.Result result = SeatBooking.book(esql, customerID, cruiseNumber);
+								if (result.outcome == SeatBooking.Outcome.RESERVED || result.outcome == SeatBooking.Outcome.PROMOTED
+										|| result.outcome == SeatBooking.Outcome.CONFIRMED) {
+									reserved.incrementAndGet();
+								} else {
+									waitlisted.incrementAndGet();
+								}
+							} catch (Exception e) {
+								failed.incrementAndGet();
+								System.err.println(e.getMessage());
+							}
+						}
+					}
+				});
+				workers[t].start();
+			}
+
+			long startNanos = System.nanoTime();
+			start.countDown();
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+			TypedResult after = seatState(esql, cruiseNumber);
+			int soldAfter = after.getInt(0, 1);
+			long reservedAfter = after.getLong(0, 2);
+
+			System.out.println(String.format("Seats taken: %d, waitlisted: %d, failed: %d", reserved.get(), waitlisted.get(), failed.get()));
+			System.out.println(String.format("Throughput: %.1f bookings/sec over %.2f s", (reserved.get() + waitlisted.get()) / seconds, seconds));
+			System.out.println("Pool: " + esql.poolStats());
+
+			boolean ok = true;
+			if (soldAfter > seats) {
+				System.out.println(DBproject.ANSI_RED + "FAIL: overbooked, num_sold " + soldAfter + " > seats " + seats + DBproject.ANSI_RESET);
+				ok = false;
+			}
+			// the seed data need not match, so the growth of both is compared
+			if (soldAfter - soldBefore != reservedAfter - reservedBefore) {
+				System.out.println(DBproject.ANSI_RED + "FAIL: num_sold grew by " + (soldAfter - soldBefore) + " but there are " + (reservedAfter - reservedBefore) + " new R/C reservations" + DBproject.ANSI_RESET);
+				ok = false;
+			}
+			if (ok) {
+				System.out.println(DBproject.ANSI_GREEN + "PASS: no overbooking" + DBproject.ANSI_RESET);
+			} else {
+				exitCode = 1;
+			}
+		} finally {
+			esql.cleanup();
+		}
+		System.exit(exitCode);
+	}
+
+	// seats, num_sold and number of R/C reservations of the cruise
+	private static TypedResult seatState(DBproject esql, int cruiseNumber) throws Exception {
+		return esql.executeQueryAndReturnTyped(
+			"SELECT S.seats, C.num_sold, (SELECT COUNT(*) FROM Reservation R WHERE R.cid = C.cnum AND R.status IN ('R', 'C')) " +
+			"FROM CruiseInfo CI, Cruise C, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.cnum = ?", cruiseNumber);
+	}
+}
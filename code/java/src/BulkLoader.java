@@ -0,0 +1,219 @@
+/*
+ * Client-side bulk loader
+ * =======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class rebuilds the database from sql/create.sql and the CSV files in
+ * data/ without the server needing access to them. The tables are created
+ * from create.sql, its foreign keys are dropped, every COPY statement in it
+ * is run as COPY ... FROM STDIN with the file streamed from this machine,
+ * all tables in parallel, and only then are the foreign keys, indexes
+ * (create_indexes.sql, cluster.sql) and booking sequences put back and the
+ * tables analyzed. The time of each phase is printed.
+ *
+ */
+
+public class BulkLoader {
+	// COPY Table (columns) FROM 'file' options
+	private static final Pattern COPY = Pattern.compile(
+		"COPY\\s+(\\w+)\\s*\\(([^)]*)\\)\\s*FROM\\s+'([^']+)'(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern CREATE_DOMAIN = Pattern.compile(
+		"CREATE\\s+DOMAIN\\s+(\\w+).*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	// run in this order once the data is in
+	private static final String[] POST_LOAD_SCRIPTS = { "create_indexes.sql", "cluster.sql", "booking.sql", "id_blocks.sql", "waitlist.sql", "repairs.sql", "reservation_counts.sql" };
+
+	private static final String FOREIGN_KEYS =
+		"SELECT conrelid::regclass::text, conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+		"WHERE contype = 'f' AND connamespace = (SELECT oid FROM pg_namespace WHERE nspname = current_schema()) " +
+		"ORDER BY conrelid::regclass::text, conname";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName() +
+				" <dbname> <port> <user> [sql dir] [data dir] [threads]");
+			return;
+		}
+		File sqlDir = new File(args.length > 3 ? args[3] : "../sql");
+		File dataDir = new File(args.length > 4 ? args[4] : "../data");
+		int threads = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+
+		// one connection per loading thread plus one for the driver
+		System.setProperty("cruise.pool.maxSize", Integer.toString(threads + 1));
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			load(esql, sqlDir, dataDir, threads);
+		} catch (Exception e) {
+			System.err.println(DBproject.ANSI_RED + e.getMessage() + DBproject.ANSI_RESET);
+		} finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Rebuilds every table of create.sql and loads it from dataDir.
+	 *
+	 * @param esql the database connection
+	 * @param sqlDir directory holding create.sql and the post load scripts
+	 * @param dataDir directory holding the CSV files named in create.sql
+	 * @param threads number of tables loaded at the same time
+	 * @throws java.lang.Exception when a phase failed
+	 */
+	public static void load(final DBproject esql, File sqlDir, final File dataDir, int threads) throws Exception {
+		long total = System.nanoTime();
+
+		// schema: everything in create.sql except the COPY statements
+		long start = System.nanoTime();
+		final List<Matcher> copies = new ArrayList<Matcher>();
+		for (String sql : readStatements(new File(sqlDir, "create.sql"))) {
+			Matcher copy = COPY.matcher(sql);
+			if (copy.matches()) {
+				copies.add(copy);
+				continue;
+			}
+			Matcher domain = CREATE_DOMAIN.matcher(sql);
+			if (domain.matches()) {
+				// create.sql drops its tables but not its domains
+				esql.executeUpdate("DROP DOMAIN IF EXISTS " + domain.group(1) + " CASCADE");
+			}
+			esql.execute(sql);
+		}
+		phase("schema", start);
+
+		// drop the foreign keys so tables can load independently
+		start = System.nanoTime();
+		TypedResult keys = esql.executeQueryAndReturnTyped(FOREIGN_KEYS);
+		for (int row = 0; row < keys.size(); row++) {
+			esql.executeUpdate("ALTER TABLE " + keys.getString(row, 0) + " DROP CONSTRAINT " + keys.getString(row, 1));
+		}
+		phase("drop " + keys.size() + " foreign keys", start);
+
+		// data: one COPY FROM STDIN per table, in parallel
+		start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<String>> loads = new ArrayList<Future<String>>();
+		for (final Matcher copy : copies) {
+			loads.add(pool.submit(new Callable<String>() {
+				public String call() throws Exception {
+					long tableStart = System.nanoTime();
+					String sql = "COPY " + copy.group(1) + " (" + copy.group(2).trim() + ") FROM STDIN" + copy.group(4);
+					File file = new File(dataDir, copy.group(3));
+					BufferedReader data = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+					try {
+						long rows = esql.copyIn(sql, data);
+						double seconds = (System.nanoTime() - tableStart) / 1e9;
+						return String.format("\t%-12s %9d rows in %7.3f s (%.0f rows/sec)", copy.group(1), rows, seconds, seconds == 0 ? 0.0 : rows / seconds);
+					} finally {
+						data.close();
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+		try {
+			for (Future<String> load : loads) {
+				System.out.println(load.get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		phase("load " + copies.size() + " tables", start);
+
+		// put the foreign keys back now that all referenced rows exist
+		start = System.nanoTime();
+		for (int row = 0; row < keys.size(); row++) {
+			esql.executeUpdate("ALTER TABLE " + keys.getString(row, 0) + " ADD CONSTRAINT " + keys.getString(row, 1) + " " + keys.getString(row, 2));
+		}
+		phase("add " + keys.size() + " foreign keys", start);
+
+		for (String script : POST_LOAD_SCRIPTS) {
+			File file = new File(sqlDir, script);
+			if (!file.isFile()) {
+				continue;
+			}
+			start = System.nanoTime();
+			for (String sql : readStatements(file)) {
+				esql.execute(sql);
+			}
+			phase(script, start);
+		}
+
+		start = System.nanoTime();
+		esql.executeUpdate("ANALYZE");
+		phase("analyze", start);
+
+		// blocks reserved before the reload may clash with the new rows
+		esql.reservationIds().reset();
+		esql.customerIds().reset();
+
+		phase("total", total);
+	}
+
+	/**
+	 * Splits a SQL script into statements, dropping -- comments. A ; or --
+	 * inside quotes or a $$ function body does not end the statement or
+	 * start a comment.
+	 *
+	 * @param file the script
+	 * @return the non-empty statements without their trailing ;
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	public static List<String> readStatements(File file) throws IOException {
+		String script = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		List<String> statements = new ArrayList<String>();
+		StringBuilder sql = new StringBuilder();
+		boolean quoted = false;
+		boolean body = false;
+		for (int i = 0; i <= script.length(); i++) {
+			char c = i < script.length() ? script.charAt(i) : ';';
+			if (c == '\'' && !body) {
+				quoted = !quoted;
+			} else if (c == '$' && !quoted && i + 1 < script.length() && script.charAt(i + 1) == '$') {
+				body = !body;
+				sql.append(c);
+				i++;
+			} else if (c == '-' && !quoted && !body && i + 1 < script.length() && script.charAt(i + 1) == '-') {
+				// the comment runs to the end of the line, the line break is kept
+				while (i + 1 < script.length() && script.charAt(i + 1) != '\n') {
+					i++;
+				}
+				continue;
+			} else if (c == ';' && !quoted && !body) {
+				String statement = sql.toString().trim();
+				if (statement.length() > 0) {
+					statements.add(statement);
+				}
+				sql.setLength(0);
+				continue;
+			}
+			sql.append(c);
+		}
+		return statements;
+	}
+
+	private static void phase(String name, long start) {
+		System.out.println(DBproject.ANSI_GREEN + String.format("%-28s %8.3f s", name, (System.nanoTime() - start) / 1e9) + DBproject.ANSI_RESET);
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Connection pool for the DBproject helpers
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded set of physical connections to the database and
+ * leases them out to callers. A connection that sat idle for too long is
+ * validated before it is handed out again, and callers wait at most
+ * maxWaitMillis for a free connection before the borrow fails.
+ *
+ */
+
+public class ConnectionPool {
+	private final String url;
+	private final String user;
+	private final String passwd;
+	private final int maxSize;
+	private final long maxWaitMillis;
+	private final long validateIdleMillis;
+	private final int statementCacheSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private int open = 0;
+	private boolean closed = false;
+
+	// borrow/return metrics
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong returned = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong waited = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * A physical connection owned by the pool.
+	 */
+	public static class PooledConnection {
+		private final ConnectionPool pool;
+		private final Connection connection;
+		private final StatementCache statements;
+		private long lastUsed;
+
+		PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+			this.pool = pool;
+			this.connection = connection;
+			this.statements = new StatementCache(connection, statementCacheSize);
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection connection() {
+			return connection;
+		}
+
+		public StatementCache statements() {
+			return statements;
+		}
+
+		/**
+		 * @return the pool the connection must be released to
+		 */
+		public ConnectionPool pool() {
+			return pool;
+		}
+	}
+
+	public ConnectionPool(String url, String user, String passwd, int maxSize, long maxWaitMillis, long validateIdleMillis, int statementCacheSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be greater than 0.");
+		}
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.maxSize = maxSize;
+		this.maxWaitMillis = maxWaitMillis;
+		this.validateIdleMillis = validateIdleMillis;
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * Opens the first connection right away so a bad URL or a stopped server
+	 * is reported at startup rather than on the first query.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public void warm() throws SQLException {
+		release(borrow());
+	}
+
+	/**
+	 * Leases a connection, opening a new one if the pool is below its bound.
+	 *
+	 * @return a connection that must be handed back with release()
+	 * @throws java.sql.SQLException when no connection could be opened, or a
+	 * SQLTransientConnectionException when none frees up within maxWaitMillis
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		boolean countedWait = false;
+		long waitStart = 0;
+
+		while (true) {
+			PooledConnection pc = null;
+			boolean openNew = false;
+
+			lock.lock();
+			try {
+				while (true) {
+					if (closed) {
+						throw new SQLException("Connection pool is closed.");
+					}
+					pc = idle.pollFirst();
+					if (pc != null) {
+						break;
+					}
+					if (open < maxSize) {
+						open++;
+						openNew = true;
+						break;
+					}
+
+					// pool exhausted, wait for a release
+					if (!countedWait) {
+						countedWait = true;
+						waitStart = System.nanoTime();
+						waited.incrementAndGet();
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeouts.incrementAndGet();
+						waitNanos.addAndGet(System.nanoTime() - waitStart);
+						throw new SQLTransientConnectionException("Timed out after " + maxWaitMillis + " ms waiting for a database connection.");
+					}
+					try {
+						available.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection.");
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (countedWait) {
+				waitNanos.addAndGet(System.nanoTime() - waitStart);
+				countedWait = false;
+			}
+
+			if (openNew) {
+				try {
+					pc = new PooledConnection(this, DriverManager.getConnection(url, user, passwd), statementCacheSize);
+					created.incrementAndGet();
+				} catch (SQLException e) {
+					forget();
+					throw e;
+				}
+			} else if (!isUsable(pc)) {
+				// stale connection, drop it and try again
+				discard(pc);
+				continue;
+			}
+
+			borrowed.incrementAndGet();
+			return pc;
+		}
+	}
+
+	/**
+	 * Hands a connection back to the pool. Connections left in a transaction
+	 * are rolled back, broken ones are closed instead of being reused.
+	 *
+	 * @param pc the connection obtained from borrow()
+	 */
+	public void release(PooledConnection pc) {
+		if (pc == null) {
+			return;
+		}
+		returned.incrementAndGet();
+
+		try {
+			if (pc.connection.isClosed()) {
+				discard(pc);
+				return;
+			}
+			if (!pc.connection.getAutoCommit()) {
+				pc.connection.rollback();
+				pc.connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			discard(pc);
+			return;
+		}
+
+		pc.lastUsed = System.currentTimeMillis();
+		lock.lock();
+		try {
+			if (closed) {
+				open--;
+				closeQuietly(pc);
+				return;
+			}
+			idle.addFirst(pc);
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes every idle connection and refuses further borrows.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			PooledConnection pc;
+			while ((pc = idle.pollFirst()) != null) {
+				open--;
+				closeQuietly(pc);
+			}
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String url() {
+		return url;
+	}
+
+	public int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return a one line summary of the borrow/return metrics
+	 */
+	public String stats() {
+		int openNow;
+		int idleNow;
+		lock.lock();
+		try {
+			openNow = open;
+			idleNow = idle.size();
+		} finally {
+			lock.unlock();
+		}
+		long waits = waited.get();
+		double avgWaitMs = waits == 0 ? 0.0 : waitNanos.get() / 1e6 / waits;
+		return String.format("open=%d idle=%d max=%d borrowed=%d returned=%d created=%d discarded=%d waits=%d timeouts=%d avgWaitMs=%.3f",
+			openNow, idleNow, maxSize, borrowed.get(), returned.get(), created.get(), discarded.get(), waits, timeouts.get(), avgWaitMs);
+	}
+
+	private boolean isUsable(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.lastUsed < validateIdleMillis) {
+			return true;
+		}
+		try {
+			return pc.connection.isValid(5);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc) {
+		discarded.incrementAndGet();
+		closeQuietly(pc);
+		forget();
+	}
+
+	// gives up a slot so a waiting borrower may open a fresh connection
+	private void forget() {
+		lock.lock();
+		try {
+			open--;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void closeQuietly(PooledConnection pc) {
+		pc.statements.clear();
+		try {
+			pc.connection.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * HTTP/JSON front end
+ * ===================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves booking, availability, passenger counts, the repairs report and
+ * the cost search as JSON over HTTP, through CruiseService. Every request
+ * runs on its own virtual thread where the JVM has them, and connections
+ * are kept alive between requests.
+ *
+ * Admission control: at most maxConcurrent requests are handled at once,
+ * and each operation has the service's own bound; a request over either
+ * bound is answered at once with 429 and Retry-After instead of waiting,
+ * and one that timed out waiting for a database connection with 503.
+ *
+ * Endpoints (parameters in the query string, or as a form body for POST):
+ *   POST /bookings       customer, cruise                        (4)
+ *   GET  /availability   cruise, date (yyyy-mm-dd)               (5)
+ *   GET  /repairs                                                (6)
+ *   GET  /passengers     cruise, status (W, C or R)              (7)
+ *   GET  /cruises        under | min_cost and max_cost,
+ *                        [limit], [after]                        (9)
+ *   GET  /departures     from, to, [seats]                       (11)
+ *   GET  /stats
+ *
+ */
+
+public class CruiseHttpServer {
+	private static final int MAX_BODY_BYTES = 64 * 1024;
+
+	static {
+		// without it every response waits out the client's delayed ACK, about 40 ms
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	/**
+	 * A request that is answered with a status other than 200.
+	 */
+	private static class HttpError extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		HttpError(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private final DBproject esql;
+	private final CruiseService service;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int maxConcurrent;
+	private final Semaphore admitted;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public CruiseHttpServer(DBproject esql, InetSocketAddress address, int maxConcurrent) throws IOException {
+		this.esql = esql;
+		this.service = esql.service();
+		this.maxConcurrent = maxConcurrent;
+		this.admitted = new Semaphore(maxConcurrent);
+		this.server = HttpServer.create(address, 0);
+		this.executor = CruiseService.newExecutor("http");
+		this.server.setExecutor(executor);
+		this.server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				CruiseHttpServer.this.handle(exchange);
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + CruiseHttpServer.class.getName() +
+				" <dbname> <port> <user> [--http-port 8080] [--bind 127.0.0.1] [--max-concurrent 256]");
+			return;
+		}
+		int httpPort = 8080;
+		String bind = "127.0.0.1";
+		int maxConcurrent = 256;
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+				case "--http-port": httpPort = Integer.parseInt(args[++i]); break;
+				case "--bind": bind = args[++i]; break;
+				case "--max-concurrent": maxConcurrent = Integer.parseInt(args[++i]); break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					return;
+			}
+		}
+
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		esql.startCaches();
+		final WaitlistPromoter promoter = new WaitlistPromoter(esql, 500);
+		if (Boolean.parseBoolean(System.getProperty("cruise.waitlist.listen", "true"))) {
+			promoter.start();
+		}
+		final CruiseHttpServer server = new CruiseHttpServer(esql, new InetSocketAddress(bind, httpPort), maxConcurrent);
+		server.start();
+		System.out.println("Listening on http://" + bind + ":" + httpPort + "/");
+
+		// runs until killed; finishes the requests in flight first
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				server.stop(2);
+				promoter.stop();
+				esql.cleanup();
+			}
+		}));
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting connections and waits up to delaySeconds for the
+	 * requests in flight.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (!admitted.tryAcquire()) {
+				rejected.incrementAndGet();
+				exchange.getRequestBody().close();
+				send(exchange, 429, error("Too many requests in flight, try again later."));
+				return;
+			}
+			try {
+				Json body;
+				int status = 200;
+				try {
+					body = route(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), params(exchange));
+				} catch (HttpError e) {
+					status = e.status;
+					body = error(e.getMessage());
+				} catch (Exception e) {
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					status = status(cause);
+					body = error(String.valueOf(cause.getMessage()));
+				}
+				if (status == 429) {
+					rejected.incrementAndGet();
+				} else if (status >= 500) {
+					failed.incrementAndGet();
+				}
+				send(exchange, status, body);
+			} finally {
+				admitted.release();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// what a failed call is answered with
+	private static int status(Throwable cause) {
+		if (cause instanceof CruiseService.Overloaded) {
+			return 429;
+		} else if (cause instanceof SQLTransientException) {
+			return 503;
+		} else if (cause instanceof SQLException || cause instanceof RuntimeException && !(cause instanceof IllegalArgumentException || cause instanceof DateTimeException)) {
+			return 500;
+		}
+		// the operations' input checks
+		return 400;
+	}
+
+	private Json route(String method, String path, Map<String, String> params) throws Exception {
+		switch (path) {
+			case "/bookings": {
+				method(method, "POST");
+				SeatBooking.Result booking = DBproject.await(service.bookCruise(integer(params, "customer"), integer(params, "cruise")));
+				if (booking.outcome == SeatBooking.Outcome.NOT_FOUND) {
+					throw new HttpError(404, "Cruise number not found");
+				}
+				return new Json().put("outcome", booking.outcome.name()).put("status", booking.status()).put("rnum", booking.rnum < 0 ? null : booking.rnum);
+			}
+			case "/availability": {
+				method(method, "GET");
+				int available = DBproject.await(service.availableSeats(integer(params, "cruise"), LocalDate.parse(required(params, "date"))));
+				return new Json().put("found", available >= 0).put("available", available < 0 ? null : available);
+			}
+			case "/repairs": {
+				method(method, "GET");
+				List<Json> rows = new ArrayList<Json>();
+				for (Map.Entry<Integer, Long> count : DBproject.await(service.repairsPerShip()).entrySet()) {
+					rows.add(new Json().put("ship_id", count.getKey()).put("count", count.getValue()));
+				}
+				return new Json().put("rows", rows);
+			}
+			case "/passengers": {
+				method(method, "GET");
+				String status = required(params, "status").toUpperCase();
+				return new Json().put("count", DBproject.await(service.passengersWithStatus(integer(params, "cruise"), status)));
+			}
+			case "/cruises": {
+				method(method, "GET");
+				int limit = params.containsKey("limit") ? integer(params, "limit") : DBproject.COST_PAGE_SIZE;
+				PriceIndex.Page page;
+				if (params.containsKey("under")) {
+					page = DBproject.await(service.cruisesUnderCost(integer(params, "under"), params.get("after"), limit));
+				} else {
+					page = DBproject.await(service.cruisesBetweenCost(integer(params, "min_cost"), integer(params, "max_cost"), params.get("after"), limit));
+				}
+				List<Json> rows = new ArrayList<Json>();
+				for (int i = 0; i < page.size(); i++) {
+					rows.add(new Json().put("cnum", page.cruise(i)).put("departure_time", page.departure(i).toString()).put("cost", page.cost(i)));
+				}
+				return new Json().put("rows", rows).put("total", page.total).put("next", page.next());
+			}
+			case "/departures": {
+				method(method, "GET");
+				SeatInventory.Departures found = DBproject.await(service.departuresWithSeats(LocalDate.parse(required(params, "from")),
+					LocalDate.parse(required(params, "to")), params.containsKey("seats") ? integer(params, "seats") : 1));
+				List<Json> rows = new ArrayList<Json>();
+				for (int i = 0; i < found.size(); i++) {
+					rows.add(new Json().put("cnum", found.cruise(i)).put("departure_time", found.departure(i).toString()).put("available", found.available(i)));
+				}
+				return new Json().put("rows", rows);
+			}
+			case "/stats": {
+				method(method, "GET");
+				Map<String, Json> operations = new LinkedHashMap<String, Json>();
+				for (CruiseService.Limit limit : service.limits().values()) {
+					operations.put(limit.operation, new Json().put("in_flight", limit.inFlight()).put("max_in_flight", limit.maxInFlight)
+						.put("completed", limit.completed()).put("failed", limit.failed()).put("rejected", limit.rejected()));
+				}
+				return new Json().put("requests", requests.get()).put("rejected", rejected.get()).put("failed", failed.get())
+					.put("in_flight", maxConcurrent - admitted.availablePermits()).put("max_concurrent", maxConcurrent)
+					.put("database", new Json().put("in_flight", service.inFlight()).put("max_concurrent", service.maxConcurrent()))
+					.put("operations", operations).put("pool", esql.poolStats()).put("snapshot", esql.snapshot().stats());
+			}
+			default:
+				throw new HttpError(404, "No such endpoint: " + path);
+		}
+	}
+
+	private static void method(String method, String expected) throws HttpError {
+		if (!method.equals(expected)) {
+			throw new HttpError(405, "Use " + expected + ".");
+		}
+	}
+
+	private static String required(Map<String, String> params, String name) throws HttpError {
+		String value = params.get(name);
+		if (value == null || value.isEmpty()) {
+			throw new HttpError(400, "Missing parameter: " + name);
+		}
+		return value;
+	}
+
+	private static int integer(Map<String, String> params, String name) throws HttpError {
+		String value = required(params, name);
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new HttpError(400, "Parameter " + name + " must be an integer: " + value);
+		}
+	}
+
+	// query string parameters, then those of a form body
+	private static Map<String, String> params(HttpExchange exchange) throws IOException, HttpError {
+		Map<String, String> params = new HashMap<String, String>();
+		decode(exchange.getRequestURI().getRawQuery(), params);
+		InputStream in = exchange.getRequestBody();
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				if (body.size() + n > MAX_BODY_BYTES) {
+					throw new HttpError(413, "Request body larger than " + MAX_BODY_BYTES + " bytes.");
+				}
+				body.write(buffer, 0, n);
+			}
+			String type = exchange.getRequestHeaders().getFirst("Content-Type");
+			if (type != null && type.startsWith("application/x-www-form-urlencoded")) {
+				decode(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+			}
+		} finally {
+			in.close();
+		}
+		return params;
+	}
+
+	private static void decode(String encoded, Map<String, String> params) throws UnsupportedEncodingException {
+		if (encoded == null || encoded.isEmpty()) {
+			return;
+		}
+		for (String pair : encoded.split("&")) {
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			params.put(name, value);
+		}
+	}
+
+	private static Json error(String message) {
+		return new Json().put("error", message);
+	}
+
+	// a fixed length body keeps the connection open for the next request
+	private static void send(HttpExchange exchange, int status, Json body) throws IOException {
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		if (status == 429 || status == 503) {
+			exchange.getResponseHeaders().set("Retry-After", "1");
+		}
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
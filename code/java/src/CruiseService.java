@@ -0,0 +1,380 @@
+/*
+ * Asynchronous service API
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The menu operations as typed methods returning CompletableFutures, for
+ * callers that want to run them concurrently or without the console. Each
+ * call runs on its own virtual thread where the JVM has them (Java 21+),
+ * on a pooled platform thread otherwise.
+ *
+ * Every operation has its own bound on calls in flight, by default half
+ * the connection pool, so a burst of one operation cannot take every
+ * connection from the others, and all calls together share one bound the
+ * size of the pool. A call that finds its operation at its bound fails at
+ * once with Overloaded; a call whose operation has room waits, on its own
+ * thread, up to acquireMillis for a database slot and then fails with
+ * Overloaded instead of queueing behind a saturated database. Callers
+ * should back off and retry. Submitting never blocks the caller.
+ *
+ * Reads made by a service call see the writes of earlier calls on the same
+ * service, also when replicas are configured. With write-behind enabled the
+ * add operations free their slot once the row is queued, and their future
+ * completes when the row is committed.
+ *
+ */
+
+public class CruiseService {
+	/**
+	 * The operation is at its bound of calls in flight.
+	 */
+	public static class Overloaded extends RejectedExecutionException {
+		private static final long serialVersionUID = 1L;
+
+		Overloaded(String operation, int maxInFlight) {
+			super(operation + " is busy: " + maxInFlight + " calls in flight, try again later.");
+		}
+	}
+
+	/**
+	 * Bound and counters of one operation.
+	 */
+	public static class Limit {
+		public final String operation;
+		public final int maxInFlight;
+		private final Semaphore permits;
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+
+		Limit(String operation, int maxInFlight) {
+			this.operation = operation;
+			this.maxInFlight = maxInFlight;
+			this.permits = new Semaphore(maxInFlight);
+		}
+
+		public int inFlight() {
+			return maxInFlight - permits.availablePermits();
+		}
+
+		public long completed() {
+			return completed.get();
+		}
+
+		public long failed() {
+			return failed.get();
+		}
+
+		public long rejected() {
+			return rejected.get();
+		}
+	}
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private final DBproject esql;
+	private final ExecutorService executor;
+	private final long acquireMillis;
+	// calls running against the database, across all operations
+	private final Semaphore database;
+	private final int maxConcurrent;
+	private final Map<String, Limit> limits = new LinkedHashMap<String, Limit>();
+	private final Limit addShip;
+	private final Limit addCaptain;
+	private final Limit addCruise;
+	private final Limit bookCruise;
+	private final Limit availableSeats;
+	private final Limit repairsPerShip;
+	private final Limit passengersWithStatus;
+	private final Limit addCustomer;
+	private final Limit cruisesByCost;
+	private final Limit departuresWithSeats;
+	// the newest write made by any call, so later reads can see it
+	private volatile Long lastWrite = null;
+
+	/**
+	 * Reads the bounds from cruise.service.maxInFlight (all operations),
+	 * cruise.service.&lt;operation&gt;.maxInFlight and
+	 * cruise.service.maxConcurrent (all calls together), and the wait for a
+	 * database slot from cruise.service.acquireMillis.
+	 */
+	public CruiseService(DBproject esql) {
+		this.esql = esql;
+		this.acquireMillis = Long.getLong("cruise.service.acquireMillis", 50L);
+		this.executor = newExecutor("cruise-service");
+		int poolSize = Integer.getInteger("cruise.pool.maxSize", 8);
+		this.maxConcurrent = Integer.getInteger("cruise.service.maxConcurrent", poolSize);
+		this.database = new Semaphore(maxConcurrent);
+		int maxInFlight = Integer.getInteger("cruise.service.maxInFlight", Math.max(1, poolSize / 2));
+		addShip = limit("addShip", maxInFlight);
+		addCaptain = limit("addCaptain", maxInFlight);
+		addCruise = limit("addCruise", maxInFlight);
+		bookCruise = limit("bookCruise", maxInFlight);
+		availableSeats = limit("availableSeats", maxInFlight);
+		repairsPerShip = limit("repairsPerShip", maxInFlight);
+		passengersWithStatus = limit("passengersWithStatus", maxInFlight);
+		addCustomer = limit("addCustomer", maxInFlight);
+		cruisesByCost = limit("cruisesByCost", maxInFlight);
+		departuresWithSeats = limit("departuresWithSeats", maxInFlight);
+	}
+
+	private Limit limit(String operation, int maxInFlight) {
+		Limit limit = new Limit(operation, Integer.getInteger("cruise.service." + operation + ".maxInFlight", maxInFlight));
+		limits.put(operation, limit);
+		return limit;
+	}
+
+	// one virtual thread per task on Java 21+, a growing pool of daemon threads before
+	static ExecutorService newExecutor(final String name) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// the callers' bounds keep the pool from growing without limit
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, name + "-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	public CompletableFuture<Void> addShip(final int id, final String make, final String model, final int age, final int seats) { //1
+		return written(submit(addShip, new Callable<CompletableFuture<Void>>() {
+			public CompletableFuture<Void> call() throws Exception {
+				return DBproject.addShip(esql, id, make, model, age, seats);
+			}
+		}));
+	}
+
+	public CompletableFuture<Void> addCaptain(final int id, final String fullname, final String nationality) { //2
+		return written(submit(addCaptain, new Callable<CompletableFuture<Void>>() {
+			public CompletableFuture<Void> call() throws Exception {
+				return DBproject.addCaptain(esql, id, fullname, nationality);
+			}
+		}));
+	}
+
+	public CompletableFuture<Void> addCruise(final int cnum, final int cost, final int numSold, final int numStops,
+			final String departure, final String arrival, final String arrivalPort, final String departurePort) { //3
+		return written(submit(addCruise, new Callable<CompletableFuture<Void>>() {
+			public CompletableFuture<Void> call() throws Exception {
+				return DBproject.addCruise(esql, cnum, cost, numSold, numStops, departure, arrival, arrivalPort, departurePort);
+			}
+		}));
+	}
+
+	public CompletableFuture<SeatBooking.Result> bookCruise(final int customerID, final int cruiseNumber) { //4
+		return submit(bookCruise, new Callable<SeatBooking.Result>() {
+			public SeatBooking.Result call() throws Exception {
+				return DBproject.bookCruise(esql, customerID, cruiseNumber);
+			}
+		});
+	}
+
+	/**
+	 * @return free seats on the cruise departing that day, -1 if there is no such departure
+	 */
+	public CompletableFuture<Integer> availableSeats(final int cruiseNumber, final LocalDate departure) { //5
+		return submit(availableSeats, new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return DBproject.availableSeats(esql, cruiseNumber, departure);
+			}
+		});
+	}
+
+	/**
+	 * @return repairs per ship id, most repaired ship first
+	 */
+	public CompletableFuture<Map<Integer, Long>> repairsPerShip() { //6
+		return submit(repairsPerShip, new Callable<Map<Integer, Long>>() {
+			public Map<Integer, Long> call() throws Exception {
+				final Map<Integer, Long> counts = new LinkedHashMap<Integer, Long>();
+				DBproject.repairsPerShip(esql, new RowHandler() {
+					public void row(ResultSet rs) throws SQLException {
+						counts.put(rs.getInt(1), rs.getLong(2));
+					}
+				});
+				return counts;
+			}
+		});
+	}
+
+	public CompletableFuture<Long> passengersWithStatus(final int cruiseNumber, final String status) { //7
+		return submit(passengersWithStatus, new Callable<Long>() {
+			public Long call() throws Exception {
+				return DBproject.passengersWithStatus(esql, cruiseNumber, status);
+			}
+		});
+	}
+
+	/**
+	 * @return the id given to the new customer
+	 */
+	public CompletableFuture<Integer> addCustomer(final String firstName, final String lastName, final String gender, final LocalDate dob,
+			final String address, final String zip, final String phone) { //8
+		return written(submit(addCustomer, new Callable<CompletableFuture<Integer>>() {
+			public CompletableFuture<Integer> call() throws Exception {
+				return DBproject.addCustomer(esql, firstName, lastName, gender, dob, address, zip, phone);
+			}
+		}));
+	}
+
+	public CompletableFuture<PriceIndex.Page> cruisesUnderCost(final int cost, final String after, final int limit) { //9
+		return submit(cruisesByCost, new Callable<PriceIndex.Page>() {
+			public PriceIndex.Page call() throws Exception {
+				return DBproject.cruisesUnderCost(esql, cost, after, limit);
+			}
+		});
+	}
+
+	public CompletableFuture<PriceIndex.Page> cruisesBetweenCost(final int minCost, final int maxCost, final String after, final int limit) {
+		return submit(cruisesByCost, new Callable<PriceIndex.Page>() {
+			public PriceIndex.Page call() throws Exception {
+				return DBproject.cruisesBetweenCost(esql, minCost, maxCost, after, limit);
+			}
+		});
+	}
+
+	public CompletableFuture<SeatInventory.Departures> departuresWithSeats(final LocalDate from, final LocalDate to, final int minSeats) { //11
+		return submit(departuresWithSeats, new Callable<SeatInventory.Departures>() {
+			public SeatInventory.Departures call() throws Exception {
+				return DBproject.departuresWithSeats(esql, from, to, minSeats);
+			}
+		});
+	}
+
+	// takes a slot of the operation without waiting, or fails with Overloaded, and runs the call on the
+	// executor; the worker, not the caller, waits for a database slot
+	private <T> CompletableFuture<T> submit(final Limit limit, final Callable<T> call) {
+		if (!limit.permits.tryAcquire()) {
+			limit.rejected.incrementAndGet();
+			return failed(new Overloaded(limit.operation, limit.maxInFlight));
+		}
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (!database.tryAcquire(acquireMillis, TimeUnit.MILLISECONDS)) {
+							limit.permits.release();
+							limit.rejected.incrementAndGet();
+							future.completeExceptionally(new Overloaded("The database", maxConcurrent));
+							return;
+						}
+					} catch (InterruptedException e) {
+						// shut down while waiting
+						limit.permits.release();
+						limit.failed.incrementAndGet();
+						future.completeExceptionally(e);
+						return;
+					}
+					T result = null;
+					Throwable failure = null;
+					try {
+						// the worker reads like the thread that made the earlier writes
+						esql.setLastWrite(lastWrite);
+						result = call.call();
+						noteWrite(esql.lastWrite());
+					} catch (Throwable t) {
+						failure = t;
+					} finally {
+						// free the slots first, so a caller may chain its next call on this one
+						database.release();
+						limit.permits.release();
+					}
+					if (failure == null) {
+						limit.completed.incrementAndGet();
+						future.complete(result);
+					} else {
+						limit.failed.incrementAndGet();
+						future.completeExceptionally(failure);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shut down
+			limit.permits.release();
+			return failed(e);
+		}
+		return future;
+	}
+
+	// completes when the row queued by the call is committed (see WriteBehind)
+	private static <T> CompletableFuture<T> written(CompletableFuture<CompletableFuture<T>> queued) {
+		return queued.thenCompose(new Function<CompletableFuture<T>, CompletionStage<T>>() {
+			public CompletionStage<T> apply(CompletableFuture<T> row) {
+				return row;
+			}
+		});
+	}
+
+	private synchronized void noteWrite(Long written) {
+		if (written != null && (lastWrite == null || written - lastWrite > 0)) {
+			lastWrite = written;
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+		return future;
+	}
+
+	/**
+	 * @return calls running against the database, across all operations
+	 */
+	public int inFlight() {
+		return maxConcurrent - database.availablePermits();
+	}
+
+	/**
+	 * @return the bound on calls running against the database at once
+	 */
+	public int maxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @return the bound and counters of every operation, by name
+	 */
+	public Map<String, Limit> limits() {
+		return limits;
+	}
+
+	/**
+	 * Stops taking calls and waits briefly for the calls in flight.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
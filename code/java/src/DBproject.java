@@ -13,16 +13,32 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.io.PrintStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.Scanner;
 import java.time.*; //added
 import java.time.format.*; //added
@@ -45,22 +61,105 @@ public class DBproject {
 	public static final String ANSI_CYAN = "\u001B[36m";
 	public static final String ANSI_WHITE = "\u001B[37m";
 
-	private Connection _connection = null;
+	//pool of physical database connections shared by all operations
+	private ConnectionPool _pool = null;
+	//connection held by the current thread between pinConnection and unpinConnection
+	private final ThreadLocal<ConnectionPool.PooledConnection> _pinned = new ThreadLocal<ConnectionPool.PooledConnection>();
+	//true when beginTransaction pinned the connection and commit/rollback should unpin it
+	private final ThreadLocal<Boolean> _pinnedForTransaction = new ThreadLocal<Boolean>();
+	//replicas for reporting reads, null when none are configured
+	private ReplicaRouter _router = null;
+	//true between beginReporting and endReporting
+	private final ThreadLocal<Boolean> _reporting = new ThreadLocal<Boolean>();
+	//System.nanoTime() of the current thread's last write
+	private final ThreadLocal<Long> _lastWrite = new ThreadLocal<Long>();
+	//how long after a write the writing thread keeps reading from the primary
+	private long _readYourWritesNanos = 0;
+	//typed asynchronous operations, null until service() is first called
+	private CruiseService _service = null;
+	// queues options 1, 2, 3 and 8 when -Dcruise.writeBehind.enabled=true
+	private WriteBehind _writeBehind = null;
+	//seat counts and departures cached at startup
+	private final SeatInventory _inventory = new SeatInventory();
+	//reservations per cruise and status mirrored from ReservationCount
+	private final ReservationCounters _counters = new ReservationCounters();
+	//scheduled departures sorted by cost, for option 9
+	private final PriceIndex _priceIndex = new PriceIndex();
+	private final ReferenceSnapshot _snapshot = new ReferenceSnapshot();
+	// reservation numbers and customer ids, reserved in blocks (sql/id_blocks.sql)
+	private final IdAllocator _reservationIds = new IdAllocator(this, "reservation_rnum_seq");
+	private final IdAllocator _customerIds = new IdAllocator(this, "customer_id_seq");
+	//rows fetched per round trip by streamed queries
+	private int _fetchSize = Integer.getInteger("cruise.stream.fetchSize", 1000);
+	//largest number of rows a streamed query may return, 0 for no limit
+	private int _maxRows = Integer.getInteger("cruise.stream.maxRows", 0);
+	//calls, latency, rows and bytes per SQL template
+	private final QueryMetrics _metrics = new QueryMetrics(Integer.getInteger("cruise.metrics.maxTemplates", 500));
+	//logs slow helper calls with their plans, null when disabled
+	private SlowQueryLog _slowLog = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//connection progress messages, sent to stderr in script mode so stdout stays machine-readable
+	static PrintStream status = System.out;
 
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
+		status.print("Connecting to database...");
 		try {
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println("Connection URL: " + url + "\n");
+			// batched INSERTs go out as multi-row INSERTs
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?reWriteBatchedInserts=true";
+			status.println("Connection URL: " + url + "\n");
+
+			// pool settings, e.g. -Dcruise.pool.maxSize=16
+			int maxSize = Integer.getInteger("cruise.pool.maxSize", 8);
+			long maxWaitMillis = Long.getLong("cruise.pool.maxWaitMillis", 5000L);
+			long validateIdleMillis = Long.getLong("cruise.pool.validateIdleMillis", 30000L);
+			int statementCacheSize = Integer.getInteger("cruise.pool.statementCacheSize", 64);
+
+			// obtain the first physical connection
+			this._pool = new ConnectionPool(url, user, passwd, maxSize, maxWaitMillis, validateIdleMillis, statementCacheSize);
+			this._pool.warm();
+
+			// replicas for reporting reads, e.g. -Dcruise.replica.urls=jdbc:postgresql://localhost:9998/mydb
+			String replicaUrls = System.getProperty("cruise.replica.urls", "");
+			if (!replicaUrls.trim().isEmpty()) {
+				double maxLagSeconds = Double.parseDouble(System.getProperty("cruise.replica.maxLagSeconds", "5"));
+				this._router = new ReplicaRouter(Arrays.asList(replicaUrls.split(",")), user, passwd,
+					Integer.getInteger("cruise.replica.maxSize", maxSize),
+					Long.getLong("cruise.replica.maxWaitMillis", 100L), validateIdleMillis, statementCacheSize, maxLagSeconds);
+				this._router.start(Long.getLong("cruise.replica.checkSeconds", 5L));
+				// a replica may be up to maxLagSeconds behind, so a thread's own write is not surely there before that
+				this._readYourWritesNanos = (long) (maxLagSeconds * 1e9);
+			}
+
+			// write-behind for the add operations, e.g. -Dcruise.writeBehind.enabled=true
+			if (Boolean.parseBoolean(System.getProperty("cruise.writeBehind.enabled", "false"))) {
+				this._writeBehind = new WriteBehind(this, Integer.getInteger("cruise.writeBehind.batchSize", 500),
+					Long.getLong("cruise.writeBehind.windowMillis", 20L), Integer.getInteger("cruise.writeBehind.maxQueued", 10000));
+			}
+
+			// metrics over JMX, and as a Prometheus file if -Dcruise.metrics.file is given
+			if (Boolean.parseBoolean(System.getProperty("cruise.metrics.jmx", "true"))) {
+				this._metrics.register();
+			}
+			String metricsFile = System.getProperty("cruise.metrics.file");
+			if (metricsFile != null) {
+				this._metrics.startExport(new File(metricsFile), Long.getLong("cruise.metrics.intervalSeconds", 15L));
+			}
 
-			// obtain a physical connection
-			this._connection = DriverManager.getConnection(url, user, passwd);
-			System.out.println("Done");
+			// slow-query log, off unless -Dcruise.slowlog.thresholdMillis is given
+			long slowMillis = Long.getLong("cruise.slowlog.thresholdMillis", -1L);
+			if (slowMillis >= 0) {
+				this._slowLog = new SlowQueryLog(this, slowMillis,
+					new File(System.getProperty("cruise.slowlog.file", "slow-queries.log")),
+					Long.getLong("cruise.slowlog.maxBytes", 10L * 1024 * 1024),
+					Integer.getInteger("cruise.slowlog.files", 5),
+					Integer.getInteger("cruise.slowlog.explainsPerMinute", 6),
+					Long.getLong("cruise.slowlog.explainTimeoutMillis", 30000L));
+			}
+			status.println("Done");
 		} catch (Exception e) {
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-			System.out.println("Make sure you started postgres on this machine");
+			status.println("Make sure you started postgres on this machine");
 			System.exit(-1);
 		}
 	}
@@ -69,61 +168,299 @@ public class DBproject {
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate(String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
+	public int executeUpdate(String sql, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = -1;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				// fetches the cached statement object
+				PreparedStatement stmt = prepare(pc, sql, params);
+
+				// issues the update instruction
+				rowCount = stmt.executeUpdate();
+				return rowCount;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(sql, params, start, rowCount, 0);
+		}
+	} //end executeUpdate
 
-		// issues the update instruction
-		stmt.executeUpdate(sql);
+	/**
+	 * Method to execute any SQL statement, e.g. a line of a SQL script,
+	 * whether or not it returns rows. Any rows returned are discarded.
+	 * 
+	 * @param sql the input SQL string, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
+	 * @throws java.sql.SQLException when the statement failed
+	 * */
+	public void execute(String sql, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = -1;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				prepare(pc, sql, params).execute();
+				rowCount = 0;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(sql, params, start, rowCount, 0);
+		}
+	} //end execute
 
-		// close the instruction
-		stmt.close();
-	} //end executeUpdate
+	/**
+	 * Method to execute one update SQL statement for many sets of
+	 * parameters in a single JDBC batch.
+	 * 
+	 * @param sql the input SQL string, with ? for each parameter
+	 * @param rows one array of parameter values per execution
+	 * @return the number of rows affected by each execution
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int[] executeBatch(String sql, List<Object[]> rows) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = -1;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				PreparedStatement stmt = null;
+				try {
+					for (Object[] params : rows) {
+						stmt = prepare(pc, sql, params);
+						stmt.addBatch();
+					}
+					int[] counts = stmt == null ? new int[0] : stmt.executeBatch();
+					rowCount = rows.size();
+					return counts;
+				} finally {
+					// a failed batch must not leak into the next use of the cached statement
+					if (stmt != null) stmt.clearBatch();
+				}
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(sql, null, start, rowCount, 0);
+		}
+	} //end executeBatch
+
+	/**
+	 * Method to insert one row, at once or through the write-behind queue
+	 * when it is enabled.
+	 * 
+	 * @param sql the INSERT statement, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
+	 * @return completes when the row is committed
+	 * @throws java.sql.SQLException when the insert failed at once
+	 * @throws java.lang.InterruptedException when interrupted while the queue is full
+	 * */
+	public CompletableFuture<Void> insert(String sql, Object... params) throws SQLException, InterruptedException {
+		ConnectionPool.PooledConnection pinned = this._pinned.get();
+		if (this._writeBehind != null && (pinned == null || pinned.connection().getAutoCommit())) {
+			return this._writeBehind.insert(sql, params);
+		}
+		// inside a transaction the row belongs to the transaction
+		executeUpdate(sql, params);
+		return CompletableFuture.completedFuture(null);
+	} //end insert
+
+	/**
+	 * Method to stream rows into a table with COPY ... FROM STDIN from the
+	 * client side, so the server needs no access to the input file.
+	 * 
+	 * @param sql the COPY ... FROM STDIN statement
+	 * @param data the rows in the format the statement expects
+	 * @return the number of rows copied
+	 * @throws java.sql.SQLException when the copy failed
+	 * @throws java.io.IOException when the input cannot be read
+	 * */
+	public long copyIn(String sql, Reader data) throws SQLException, IOException {
+		ConnectionPool.PooledConnection pc = lease();
+		try {
+			return pc.connection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql, data, 1 << 16);
+		} finally {
+			release(pc);
+		}
+	} //end copyIn
+
+	/**
+	 * Method to stream the output of COPY ... TO STDOUT to the client side,
+	 * as the server sends it, so the server needs no access to the output
+	 * file.
+	 * 
+	 * @param sql the COPY ... TO STDOUT statement
+	 * @param out receives the rows in the format the statement asks for
+	 * @return the number of rows copied
+	 * @throws java.sql.SQLException when the copy failed
+	 * @throws java.io.IOException when the output cannot be written
+	 * */
+	public long copyOut(String sql, OutputStream out) throws SQLException, IOException {
+		long start = System.nanoTime();
+		long rows = -1;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				rows = pc.connection().unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+				return rows;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(sql, new Object[0], start, rows, 0);
+		}
+	} //end copyOut
+
+	/**
+	 * Method to wait for NOTIFY messages on the pinned connection, once
+	 * LISTEN has been executed on it.
+	 * 
+	 * @param timeoutMillis how long to wait for the first message, more than 0
+	 * @return the payloads of the messages received, empty on timeout
+	 * @throws java.sql.SQLException when no connection is pinned or it broke
+	 * */
+	public List<String> awaitNotifications(int timeoutMillis) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pinned.get();
+		if (pc == null) {
+			throw new SQLException("Notifications need a pinned connection.");
+		}
+		// a timeout of 0 would block forever
+		PGNotification[] received = pc.connection().unwrap(PGConnection.class).getNotifications(Math.max(1, timeoutMillis));
+		List<String> payloads = new ArrayList<String>();
+		if (received != null) {
+			for (PGNotification notification : received) {
+				payloads.add(notification.getParameter());
+			}
+		}
+		return payloads;
+	} //end awaitNotifications
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult(String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement();
+	public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+		final boolean[] outputHeader = { true };
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
+		//iterates through the result set and output them to standard out.
+		return executeQueryAndStream(query, new RowHandler() {
+			public void row(ResultSet rs) throws SQLException {
+				/*
+				 *  obtains the metadata object for the returned result set.  The metadata
+				 *  contains row and column info.
+				 */
+				ResultSetMetaData rsmd = rs.getMetaData();
+				int numCol = rsmd.getColumnCount();
+				// one print per line instead of one per cell
+				StringBuilder line = new StringBuilder();
+				if (outputHeader[0]) {
+					for (int i = 1; i <= numCol; i++) {
+						line.append(rsmd.getColumnName(i)).append('\t');
+					}
+					line.append('\n');
+					outputHeader[0] = false;
+				}
+				for (int i = 1; i <= numCol; ++i)
+					line.append(rs.getString(i)).append('\t');
+				System.out.println(line);
+			}
+		}, params);
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData();
-		int numCol = rsmd.getColumnCount();
-		int rowCount = 0;
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method reads the result through a server-side cursor, fetchSize rows
+	 * at a time, and hands each row to the handler so memory use does not
+	 * grow with the size of the result.
+	 * 
+	 * @param query the input query string, with ? for each parameter
+	 * @param handler called once for every row
+	 * @param params values bound to the ? placeholders in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query or
+	 * the result has more than maxRows rows
+	 */
+	public int executeQueryAndStream(String query, RowHandler handler, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int result = -1;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			Connection conn = pc.connection();
+			// the driver only uses a cursor inside a transaction
+			boolean ownTransaction = conn.getAutoCommit();
+			try {
+				if (ownTransaction) {
+					conn.setAutoCommit(false);
+				}
+				PreparedStatement stmt = prepare(pc, query, params);
+				stmt.setFetchSize(this._fetchSize);
+				// one extra row tells us the guard was hit
+				stmt.setMaxRows(this._maxRows > 0 ? this._maxRows + 1 : 0);
+
+				ResultSet rs = stmt.executeQuery();
+				int rowCount = 0;
+				try {
+					while (rs.next()) {
+						if (this._maxRows > 0 && rowCount == this._maxRows) {
+							throw new SQLException("Query returned more than " + this._maxRows + " rows; stopped at the max rows limit.");
+						}
+						handler.row(rs);
+						++rowCount;
+					} //end while
+				} finally {
+					rs.close();
+					stmt.setMaxRows(0);
+					stmt.setFetchSize(0);
+				}
 
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()) {
-			if (outputHeader) {
-				for (int i = 1; i <= numCol; i++) {
-					System.out.print(rsmd.getColumnName(i) + "\t");
+				if (ownTransaction) {
+					conn.commit();
 				}
-				System.out.println();
-				outputHeader = false;
+				result = rowCount;
+				return rowCount;
+			} finally {
+				if (ownTransaction) {
+					try {
+						conn.rollback();
+						conn.setAutoCommit(true);
+					} catch (SQLException e) {
+						// ignored, the pool discards broken connections.
+					}
+				}
+				release(pc);
 			}
-			for (int i = 1; i <= numCol; ++i)
-				System.out.print(rs.getString(i) + "\t");
-			System.out.println();
-			++rowCount;
-		} //end while
-		stmt.close();
-		return rowCount;
+		} finally {
+			// rows go straight to the handler, nothing is held here
+			observe(query, params, start, result, 0);
+		}
+	} //end executeQueryAndStream
+
+	/**
+	 * @param fetchSize rows fetched per round trip by streamed queries
+	 */
+	public void setFetchSize(int fetchSize) {
+		this._fetchSize = fetchSize;
+	}
+
+	/**
+	 * @param maxRows largest result a streamed query may return, 0 for no limit
+	 */
+	public void setMaxRows(int maxRows) {
+		this._maxRows = maxRows;
 	}
 
 	/**
@@ -131,67 +468,119 @@ public class DBproject {
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each recordinturn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement();
-
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery(query);
-
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData();
-		int numCol = rsmd.getColumnCount();
-		int rowCount = 0;
-
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result = new ArrayList<List<String>> ();
-		while (rs.next()) {
-			List < String > record = new ArrayList < String > ();
-			for (int i = 1; i <= numCol; ++i)
-				record.add(rs.getString(i));
-			result.add(record);
-		} //end while 
-		stmt.close();
-		return result;
+	public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = -1;
+		long bytes = 0;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				//issues the query instruction 
+				ResultSet rs = prepare(pc, query, params).executeQuery();
+
+				/*
+				 * obtains the metadata object for the returned result set.  The metadata 
+				 * contains row and column info. 
+				 */
+				ResultSetMetaData rsmd = rs.getMetaData();
+				int numCol = rsmd.getColumnCount();
+
+				//iterates through the result set and saves the data returned by the query. 
+				List<List<String>> result = new ArrayList<List<String>> ();
+				while (rs.next()) {
+					List < String > record = new ArrayList < String > ();
+					for (int i = 1; i <= numCol; ++i) {
+						String value = rs.getString(i);
+						if (value != null) bytes += 2L * value.length();
+						record.add(value);
+					}
+					result.add(record);
+				} //end while 
+				rs.close();
+				rowCount = result.size();
+				return result;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(query, params, start, rowCount, bytes);
+		}
 	} //end executeQueryAndReturnResult
 
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results column by
+	 * column, with integer columns kept as primitives.
+	 * 
+	 * @param query the input query string, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public TypedResult executeQueryAndReturnTyped(String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		TypedResult result = null;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				ResultSet rs = prepare(pc, query, params).executeQuery();
+				result = TypedResult.read(rs);
+				rs.close();
+				return result;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(query, params, start, result == null ? -1 : result.size(), result == null ? 0 : result.estimatedBytes());
+		}
+	} //end executeQueryAndReturnTyped
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery(String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		if (rs.next()) {
-			rowCount++;
-		} //end while
-		stmt.close();
-		return rowCount;
+	public int executeQuery(String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int result = -1;
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				//issues the query instruction
+				ResultSet rs = prepare(pc, query, params).executeQuery();
+
+				int rowCount = 0;
+
+				//iterates through the result set and count nuber of results.
+				if (rs.next()) {
+					rowCount++;
+				} //end while
+				rs.close();
+				result = rowCount;
+				return rowCount;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(query, params, start, result, 0);
+		}
 	}
 
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys. currval is per
+	 * session, so the caller must pinConnection() around the insert
+	 * and this call.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -199,43 +588,391 @@ public class DBproject {
 	 */
 
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement();
+		long start = System.nanoTime();
+		int rowCount = -1;
+		Object[] params = { sequence };
+		try {
+			ConnectionPool.PooledConnection pc = lease();
+			try {
+				ResultSet rs = prepare(pc, CURRVAL, params).executeQuery();
+				int value = -1;
+				if (rs.next()) value = rs.getInt(1);
+				rs.close();
+				rowCount = 1;
+				return value;
+			} finally {
+				release(pc);
+			}
+		} finally {
+			observe(CURRVAL, params, start, rowCount, 0);
+		}
+	}
+
+	private static final String CURRVAL = "SELECT currval(CAST(? AS regclass))";
 
-		ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	// records one helper call in the query metrics and the slow-query log; rowCount is -1 when the call failed
+	private void observe(String sql, Object[] params, long start, long rowCount, long bytes) {
+		long nanos = System.nanoTime() - start;
+		if (this._router != null && !readsOnly(sql)) {
+			this._lastWrite.set(start + nanos);
+		}
+		this._metrics.record(sql, nanos, rowCount, bytes);
+		if (this._slowLog != null) {
+			this._slowLog.offer(sql, params, nanos, rowCount);
+		}
+	}
+
+	// anything but a plain SELECT or a COPY ... TO STDOUT may have written
+	private static boolean readsOnly(String sql) {
+		String trimmed = sql.trim();
+		return trimmed.regionMatches(true, 0, "SELECT", 0, 6)
+			|| (trimmed.regionMatches(true, 0, "COPY", 0, 4) && trimmed.toUpperCase().contains(" TO STDOUT"));
+	}
+
+	// fetches the connection's cached statement for the template and binds the parameters
+	private static PreparedStatement prepare(ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		PreparedStatement stmt = pc.statements().prepare(sql);
+		// prepare() clears parameters, not a pending batch, so it is safe to call per row
+		for (int i = 0; i < params.length; i++) {
+			Object value = params[i];
+			if (value instanceof LocalDate) {
+				stmt.setDate(i + 1, java.sql.Date.valueOf((LocalDate) value));
+			} else if (value instanceof int[]) {
+				int[] values = (int[]) value;
+				Integer[] boxed = new Integer[values.length];
+				for (int j = 0; j < values.length; j++) boxed[j] = values[j];
+				stmt.setArray(i + 1, pc.connection().createArrayOf("integer", boxed));
+			} else if (value instanceof LocalDateTime) {
+				stmt.setTimestamp(i + 1, java.sql.Timestamp.valueOf((LocalDateTime) value));
+			} else if (value == null) {
+				stmt.setNull(i + 1, Types.NULL);
+			} else {
+				stmt.setObject(i + 1, value);
+			}
+		}
+		return stmt;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to keep one pooled connection bound to the calling thread so
+	 * that consecutive helper calls run in the same database session.
+	 *
+	 * @throws java.sql.SQLException when no connection could be leased
 	 */
-	public void cleanup() {
+	public void pinConnection() throws SQLException {
+		if (this._pinned.get() == null) {
+			this._pinned.set(this._pool.borrow());
+		}
+	}
+
+	/**
+	 * Method to hand the connection pinned by pinConnection back to the pool.
+	 */
+	public void unpinConnection() {
+		ConnectionPool.PooledConnection pc = this._pinned.get();
+		if (pc != null) {
+			this._pinned.remove();
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to start a transaction on the calling thread. Helper calls
+	 * made by this thread run in the transaction until commitTransaction
+	 * or rollbackTransaction.
+	 *
+	 * @throws java.sql.SQLException when no connection could be leased
+	 */
+	public void beginTransaction() throws SQLException {
+		boolean pinnedHere = this._pinned.get() == null;
+		pinConnection();
+		this._pinned.get().connection().setAutoCommit(false);
+		this._pinnedForTransaction.set(pinnedHere);
+	}
+
+	/**
+	 * Method to commit the transaction started by beginTransaction.
+	 *
+	 * @throws java.sql.SQLException when the commit failed
+	 */
+	public void commitTransaction() throws SQLException {
+		Connection conn = this._pinned.get().connection();
 		try {
-			if (this._connection != null) {
-				this._connection.close();
-			} //end if
+			conn.commit();
+			conn.setAutoCommit(true);
+			if (this._router != null) {
+				this._lastWrite.set(System.nanoTime());
+			}
+		} finally {
+			endTransaction();
+		}
+	}
+
+	/**
+	 * Method to roll back the transaction started by beginTransaction.
+	 */
+	public void rollbackTransaction() {
+		ConnectionPool.PooledConnection pc = this._pinned.get();
+		if (pc == null) {
+			return;
+		}
+		try {
+			pc.connection().rollback();
+			pc.connection().setAutoCommit(true);
 		} catch (SQLException e) {
-			// ignored.
-		} //end try
+			// ignored, the pool discards broken connections.
+		} finally {
+			endTransaction();
+		}
+	}
+
+	private void endTransaction() {
+		Boolean pinnedHere = this._pinnedForTransaction.get();
+		this._pinnedForTransaction.remove();
+		if (pinnedHere != null && pinnedHere) {
+			unpinConnection();
+		}
+	}
+
+	/**
+	 * Method to load the in-memory copies the menu options read (seat
+	 * inventory, reservation counters, price index), each unless turned off
+	 * by its cruise.*.enabled property, and to start their refreshes.
+	 *
+	 * @throws java.sql.SQLException when loading failed
+	 */
+	public void startCaches() throws SQLException {
+		// load seat counts so availability checks stay in memory
+		if (Boolean.parseBoolean(System.getProperty("cruise.inventory.enabled", "true"))) {
+			this._inventory.warm(this);
+			long refreshSeconds = Long.getLong("cruise.inventory.refreshSeconds", 60L);
+			if (refreshSeconds > 0) {
+				this._inventory.startRefresh(this, refreshSeconds);
+			}
+		}
+
+		// mirror reservation counts so option 7 is an array lookup
+		if (Boolean.parseBoolean(System.getProperty("cruise.counters.enabled", "true"))) {
+			this._counters.warm(this);
+			long refreshSeconds = Long.getLong("cruise.counters.refreshSeconds", 60L);
+			if (refreshSeconds > 0) {
+				this._counters.startRefresh(this, refreshSeconds);
+			}
+		}
+
+		// Ship, Captain, Technician, Cruise and CruiseInfo as arrays, looked up by id; options 5 and 11
+		// read the ships' seats from it when the seat inventory cannot answer
+		if (Boolean.parseBoolean(System.getProperty("cruise.snapshot.enabled", "true"))) {
+			this._snapshot.warm(this);
+			status.println("Reference snapshot: " + this._snapshot);
+			long refreshSeconds = Long.getLong("cruise.snapshot.refreshSeconds", 300L);
+			if (refreshSeconds > 0) {
+				this._snapshot.startRefresh(this, refreshSeconds);
+			}
+		}
+
+		// sort departures by cost so option 9 is a binary search
+		if (Boolean.parseBoolean(System.getProperty("cruise.priceindex.enabled", "true"))) {
+			this._priceIndex.warm(this);
+			long refreshSeconds = Long.getLong("cruise.priceindex.refreshSeconds", 300L);
+			if (refreshSeconds > 0) {
+				this._priceIndex.startRefresh(this, refreshSeconds);
+			}
+		}
+	}
+
+	/**
+	 * @return the seat inventory cache, empty until warmed
+	 */
+	public SeatInventory inventory() {
+		return this._inventory;
+	}
+
+	/**
+	 * @return the reservation counters mirror, empty until warmed
+	 */
+	public ReservationCounters counters() {
+		return this._counters;
+	}
+
+	/**
+	 * @return the price index, answered by SQL until warmed
+	 */
+	public PriceIndex priceIndex() {
+		return this._priceIndex;
+	}
+
+	public ReferenceSnapshot snapshot() {
+		return this._snapshot;
+	}
+
+	public IdAllocator reservationIds() {
+		return this._reservationIds;
+	}
+
+	public IdAllocator customerIds() {
+		return this._customerIds;
+	}
+
+	/**
+	 * @return the pool's borrow/return metrics
+	 */
+	public String poolStats() {
+		return this._pool.stats();
+	}
+
+	/**
+	 * @return the per-template query counters
+	 */
+	public QueryMetrics metrics() {
+		return this._metrics;
+	}
+
+	// the pinned connection if there is one, then a replica for reporting reads, otherwise a fresh lease from the pool
+	private ConnectionPool.PooledConnection lease() throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pinned.get();
+		if (pc != null) {
+			return pc;
+		}
+		if (this._router != null && Boolean.TRUE.equals(this._reporting.get())) {
+			Long lastWrite = this._lastWrite.get();
+			if (lastWrite == null || System.nanoTime() - lastWrite > this._readYourWritesNanos) {
+				pc = this._router.borrow();
+				if (pc != null) {
+					return pc;
+				}
+			}
+		}
+		return this._pool.borrow();
+	}
+
+	private void release(ConnectionPool.PooledConnection pc) {
+		if (pc == this._pinned.get()) {
+			return;
+		}
+		if (pc.pool() != this._pool) {
+			this._router.release(pc);
+		} else {
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to send the calling thread's following reads to a replica, when
+	 * replicas are configured and one is healthy, until endReporting. Reads
+	 * inside a transaction or on a pinned connection, and reads within the
+	 * staleness tolerance of the thread's own last write, stay on the
+	 * primary.
+	 */
+	public void beginReporting() {
+		this._reporting.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Method to send the calling thread's reads back to the primary.
+	 */
+	public void endReporting() {
+		this._reporting.remove();
+	}
+
+	/**
+	 * @return System.nanoTime() of the calling thread's last write, null if
+	 * it has not written or no replicas are configured
+	 */
+	Long lastWrite() {
+		return this._lastWrite.get();
+	}
+
+	/**
+	 * @param lastWrite the last write the calling thread's reads must see,
+	 * as returned by lastWrite() on the thread that wrote
+	 */
+	void setLastWrite(Long lastWrite) {
+		if (lastWrite == null) {
+			this._lastWrite.remove();
+		} else {
+			this._lastWrite.set(lastWrite);
+		}
+	}
+
+	/**
+	 * @return the asynchronous service over the menu operations, started on first use
+	 */
+	public synchronized CruiseService service() {
+		if (this._service == null) {
+			this._service = new CruiseService(this);
+		}
+		return this._service;
+	}
+
+	/**
+	 * @return the write-behind queue, null when inserts are written at once
+	 */
+	public WriteBehind writeBehind() {
+		return this._writeBehind;
+	}
+
+	/**
+	 * @return the replica router, null when no replicas are configured
+	 */
+	public ReplicaRouter replicas() {
+		return this._router;
+	}
+
+	/**
+	 * Method to close the physical connections if they are open.
+	 */
+	public void cleanup() {
+		unpinConnection();
+		synchronized (this) {
+			if (this._service != null) {
+				this._service.close();
+			}
+		}
+		if (this._writeBehind != null) {
+			this._writeBehind.close();
+		}
+		if (this._router != null) {
+			this._router.close();
+		}
+		this._inventory.close();
+		this._counters.close();
+		this._priceIndex.close();
+		this._snapshot.close();
+		if (this._slowLog != null) {
+			this._slowLog.close();
+		}
+		this._metrics.close();
+		if (this._pool != null) {
+			this._pool.close();
+		} //end if
 	} //end cleanup
 
 	/**
 	 * The main execution method
 	 * 
-	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>,
+	 * optionally followed by --script <file|-> or one operation and its
+	 * arguments to run without the menu (see ScriptRunner)
 	 */
 	public static void main(String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println(
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName() +
-				" <dbname> <port> <user>");
+				" <dbname> <port> <user> [--script <file|-> | <operation> <arguments>...]");
 			return;
 		} //end if
 
 		DBproject esql = null;
+		WaitlistPromoter promoter = null;
+		boolean headless = args.length > 3;
+		int failures = 0;
+		if (headless) {
+			status = System.err;
+		}
 
 		try {
-			System.out.println("(1)");
+			status.println("(1)");
 
 			try {
 				Class.forName("org.postgresql.Driver");
@@ -246,14 +983,30 @@ public class DBproject {
 				return;
 			}
 
-			System.out.println("(2)");
+			status.println("(2)");
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
 
 			esql = new DBproject(dbname, dbport, user, "");
 
-			boolean keepon = true;
+			// in-memory copies that answer options 5, 7, 9 and 11
+			esql.startCaches();
+
+			// confirm waitlisted reservations as soon as seats free up
+			if (!headless && Boolean.parseBoolean(System.getProperty("cruise.waitlist.listen", "true"))) {
+				promoter = new WaitlistPromoter(esql, 500);
+				promoter.start();
+			}
+
+			// run the given operations without prompts
+			if (headless) {
+				String[] operation = new String[args.length - 3];
+				System.arraycopy(args, 3, operation, 0, operation.length);
+				failures = ScriptRunner.runCommandLine(esql, operation);
+			}
+
+			boolean keepon = !headless;
 			while (keepon) {
 				System.out.print(ANSI_CYAN);
 				System.out.println("MAIN MENU");
@@ -267,7 +1020,9 @@ public class DBproject {
 				System.out.println("7. Find total number of passengers with a given status");
 				System.out.println("8. Add customer");
 				System.out.println("9. List cruises and their departure time under a given cost"); //added
-				System.out.println("10. < EXIT");
+				System.out.println("10. Book cruises from a file of customer/cruise pairs");
+				System.out.println("11. List cruises departing between two dates with free seats");
+				System.out.println("12. < EXIT");
 				System.out.print(ANSI_RESET);
 
 				switch (readChoice()) {
@@ -299,6 +1054,12 @@ public class DBproject {
 						ListCruisesandDepartureUnderCost(esql);
 						break;
 					case 10:
+						BatchBookCruises(esql);
+						break;
+					case 11:
+						ListDeparturesWithSeats(esql);
+						break;
+					case 12:
 						keepon = false;
 						break;
 				}
@@ -307,17 +1068,41 @@ public class DBproject {
 			}
 		} catch (Exception e) {
 			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
+			failures++;
 		} finally {
 			try {
+				if (promoter != null) {
+					promoter.stop();
+				}
 				if (esql != null) {
-					System.out.print("Disconnecting from database...");
+					status.print("Disconnecting from database...");
 					esql.cleanup();
-					System.out.println("Done\n\nBye !");
+					status.println("Done\n\nBye !");
 				} //end if				
 			} catch (Exception e) {
 				// ignored.
 			}
 		}
+		if (headless && failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Waits for a service call and rethrows what made it fail.
+	 */
+	static <T> T await(CompletableFuture<T> future) throws Exception {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		} catch (CancellationException e) {
+			throw new Exception("Operation cancelled.");
+		}
 	}
 
 	public static int readChoice() {
@@ -355,6 +1140,344 @@ public class DBproject {
 		return input;
 	}
 
+	/*
+	 * Field checks shared by the prompts and the script mode. Each one throws
+	 * with the message shown to the user.
+	 */
+
+	static void checkNotNegative(int value, String message) throws Exception {
+		if (value < 0) {
+			throw new Exception(message);
+		}
+	}
+
+	static void checkText(String value, int max) throws Exception {
+		if (value.length() > max) {
+			throw new Exception("Input cannot exceed " + max + " characters.");
+		} else if (value.length() == 0) {
+			throw new Exception("Input cannot be null.");
+		}
+	}
+
+	static void checkSeats(int seats) throws Exception {
+		if (seats < 0) {
+			throw new Exception("Seats input cannot be negative.");
+		} else if (seats > 500) {
+			throw new Exception("Seats input cannot be greater than 500.");
+		} else if (seats == 0) {
+			throw new Exception("Number of seats cannot be 0.");
+		}
+	}
+
+	static void checkCaptainName(String fullname) throws Exception {
+		if (fullname.length() > 128) {
+			throw new Exception("Captain's full name cannot exceed 128 characters.");
+		} else if (fullname.length() == 0) {
+			throw new Exception("Input cannot be null.");
+		}
+		//Check if input contains digits
+		else if (fullname.matches(".*\\d.*")) {
+			throw new Exception("Captain's name should not contain digits.");
+		}
+	}
+
+	static void checkNationality(String nationality) throws Exception {
+		if (nationality.length() > 24) {
+			throw new Exception("Nationality cannot exceed 24 characters.");
+		} else if (nationality.length() == 0) {
+			throw new Exception("Input cannot be null.");
+		} else if (nationality.matches(".*\\d,*")) {
+			throw new Exception("Nationality should not contain digits.");
+		}
+	}
+
+	static void checkCost(int cost) throws Exception {
+		if (cost < 1) {
+			throw new Exception("Cost must be greater than 0.");
+		}
+	}
+
+	static void checkPortCode(String port) throws Exception {
+		boolean hasLower = !port.equals(port.toUpperCase());
+
+		if (port.length() != 5) {
+			throw new Exception("Port code must be 5 characters.");
+		} else if (port.length() == 0) {
+			throw new Exception("Input cannot be null.");
+		} else if (port.matches(".*\\d.*")) {
+			throw new Exception("Port code cannot contain digits.");
+		} else if (hasLower) {
+			throw new Exception("Port code must be in all uppercase characters.");
+		}
+	}
+
+	static void checkPersonName(String name, String digitsMessage) throws Exception {
+		checkText(name, 24);
+		if (name.matches(".*\\d.*")) {
+			throw new Exception(digitsMessage);
+		}
+	}
+
+	static void checkGender(String gender) throws Exception {
+		if (!gender.equals("F") && !gender.equals("M")) {
+			throw new Exception("Input must be either F or M.");
+		}
+	}
+
+	static void checkZip(String zip) throws Exception {
+		checkText(zip, 10);
+		if (!zip.matches("[0-9]+")) {
+			throw new Exception("Input must only contain digits");
+		}
+	}
+
+	static void checkPhone(String phone) throws Exception {
+		if (phone.length() != 10) {
+			throw new Exception("Input must be 10 digits long");
+		} else if (!phone.matches("[0-9]+")) {
+			throw new Exception("Input must only contain digits");
+		}
+	}
+
+	static void checkStatus(String status) throws Exception {
+		if (!status.equals("W") && !status.equals("C") && !status.equals("R")) {
+			throw new Exception("Status must be W, C or R.");
+		}
+	}
+
+	/*
+	 * The menu operations without prompts. The interactive methods below and
+	 * the script mode (ScriptRunner) both call these.
+	 */
+
+	//counts kept by the trigger in sql/repairs.sql, read in index order
+	static final String REPAIRS_PER_SHIP = "SELECT S.ship_id, S.repairs AS count FROM ShipRepairCount S ORDER BY S.repairs DESC, S.ship_id";
+	//rows per page of option 9
+	static final int COST_PAGE_SIZE = Integer.getInteger("cruise.priceindex.pageSize", 20);
+	//departures in a date range with enough free seats, for when the seat inventory is not loaded
+	static final String DEPARTURES_WITH_SEATS =
+		"SELECT SCH.cruiseNum, SCH.departure_time - DATE '1970-01-01', S.seats - C.num_sold FROM Schedule SCH, CruiseInfo CI, Cruise C, Ship S " +
+		"WHERE CI.cruise_id = SCH.cruiseNum AND C.cnum = SCH.cruiseNum AND CI.ship_id = S.id " +
+		"AND SCH.departure_time BETWEEN ? AND ? AND S.seats - C.num_sold >= ? ORDER BY SCH.departure_time, SCH.cruiseNum";
+	//the same without the ships, whose seats come from the reference snapshot
+	static final String DEPARTURES_SOLD =
+		"SELECT SCH.cruiseNum, SCH.departure_time - DATE '1970-01-01', C.num_sold FROM Schedule SCH, Cruise C " +
+		"WHERE C.cnum = SCH.cruiseNum AND SCH.departure_time BETWEEN ? AND ? ORDER BY SCH.departure_time, SCH.cruiseNum";
+	static final DateTimeFormatter CRUISE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+	/**
+	 * @return completes when the ship is committed, see insert()
+	 */
+	public static CompletableFuture<Void> addShip(DBproject esql, int id, String make, String model, int age, int seats) throws Exception { //1
+		checkNotNegative(id, "ID cannot be negative.");
+		checkText(make, 32);
+		checkText(model, 64);
+		checkNotNegative(age, "Age input cannot be negative.");
+		checkSeats(seats);
+		return esql.insert("INSERT INTO Ship(ID, make, model, age, seats) VALUES (?, ?, ?, ?, ?)", id, make, model, age, seats);
+	}
+
+	public static CompletableFuture<Void> addCaptain(DBproject esql, int id, String fullname, String nationality) throws Exception { //2
+		checkNotNegative(id, "Input cannot be negative.");
+		checkCaptainName(fullname);
+		checkNationality(nationality);
+		return esql.insert("INSERT INTO Captain(id, fullname, nationality) VALUES (?, ?, ?)", id, fullname, nationality);
+	}
+
+	public static CompletableFuture<Void> addCruise(DBproject esql, int cnum, int cost, int numSold, int numStops, String departure, String arrival, String arrivalPort, String departurePort) throws Exception { //3
+		checkNotNegative(cnum, "Input cannot be negative.");
+		checkCost(cost);
+		checkNotNegative(numSold, "Input cannot be negative.");
+		checkNotNegative(numStops, "Number of stops cannot be negative.");
+		LocalDate departDate = LocalDate.parse(departure, CRUISE_DATE_FORMAT);
+		LocalDate arriveDate = LocalDate.parse(arrival, CRUISE_DATE_FORMAT);
+		if (!departDate.isBefore(arriveDate)) {
+			throw new Exception("Arrival date cannot be earlier than departure date.");
+		}
+		checkPortCode(arrivalPort);
+		checkPortCode(departurePort);
+		return esql.insert("INSERT INTO Cruise(cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+			cnum, cost, numSold, numStops, departDate, arriveDate, arrivalPort, departurePort);
+	}
+
+	public static SeatBooking.Result bookCruise(DBproject esql, int customerID, int cruiseNumber) throws Exception { //4
+		return SeatBooking.book(esql, customerID, cruiseNumber);
+	}
+
+	/**
+	 * @return free seats on the cruise departing that day, -1 if there is no such departure
+	 */
+	public static int availableSeats(DBproject esql, int cruiseNumber, LocalDate departure) throws Exception { //5
+		// Answer from the seat inventory when the cruise is cached
+		int available = esql.inventory().available(cruiseNumber, departure);
+		if (available == SeatInventory.NO_DEPARTURE) {
+			return -1;
+		} else if (available != SeatInventory.UNKNOWN) {
+			return available;
+		}
+
+		// with the ship's seats from the reference snapshot only Cruise and Schedule are read; a cruise
+		// without a ship there may have got one since, so that is left to the query below
+		int seats = esql.snapshot().cruiseSeats(cruiseNumber);
+		if (seats >= 0) {
+			TypedResult sold;
+			esql.beginReporting();
+			try {
+				sold = esql.executeQueryAndReturnTyped("SELECT C.num_sold FROM Cruise C, Schedule SCH WHERE SCH.cruiseNum = C.cnum AND C.cnum = ? AND SCH.departure_time = ?", cruiseNumber, departure);
+			} finally {
+				esql.endReporting();
+			}
+			return sold.size() == 0 ? -1 : seats - sold.getInt(0, 0);
+		}
+
+		String query = "SELECT C.num_sold, S.seats FROM CruiseInfo CI, Cruise C, Ship S, Schedule SCH WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND CI.cruise_id = SCH.cruiseNum AND CI.cruise_id = ? AND SCH.departure_time = ?";
+		TypedResult result;
+		esql.beginReporting();
+		try {
+			result = esql.executeQueryAndReturnTyped(query, cruiseNumber, departure);
+		} finally {
+			esql.endReporting();
+		}
+		if (result.size() == 0) {
+			return -1;
+		}
+		return result.getInt(0, 1) - result.getInt(0, 0);
+	}
+
+	public static int repairsPerShip(DBproject esql, RowHandler handler) throws Exception { //6
+		esql.beginReporting();
+		try {
+			return esql.executeQueryAndStream(REPAIRS_PER_SHIP, handler);
+		} finally {
+			esql.endReporting();
+		}
+	}
+
+	public static long passengersWithStatus(DBproject esql, int cruiseNumber, String status) throws Exception { //7
+		checkStatus(status);
+		int cached = esql.counters().get(cruiseNumber, status);
+		if (cached != ReservationCounters.UNKNOWN) {
+			return cached;
+		}
+		// kept by the trigger in sql/reservation_counts.sql
+		esql.beginReporting();
+		try {
+			TypedResult result = esql.executeQueryAndReturnTyped("SELECT R.reservations FROM ReservationCount R WHERE R.status = ? AND R.cid = ?", status, cruiseNumber);
+			return result.size() == 0 ? 0 : result.getLong(0, 0);
+		} finally {
+			esql.endReporting();
+		}
+	}
+
+	/**
+	 * @return the id given to the new customer, once the customer is committed
+	 */
+	public static CompletableFuture<Integer> addCustomer(DBproject esql, String firstName, String lastName, String gender, LocalDate dob, String address, String zip, String phone) throws Exception { //8
+		checkPersonName(firstName, "First name cannot contain digits.");
+		checkPersonName(lastName, "Last name cannot contain digits.");
+		checkGender(gender);
+		checkText(address, 256);
+		checkZip(zip);
+		checkPhone(phone);
+
+		// the id comes from a block reserved on customer_id_seq, no round trip most of the time
+		final int id = esql.customerIds().nextInt();
+		return esql.insert("INSERT INTO Customer (id, fname, lname, gtype, dob, address, zipcode, phone) VALUES (?, ?, ?, ?, ?, ?, ?, ?)", id, firstName, lastName, gender, dob, address, zip, phone)
+			.thenApply(new Function<Void, Integer>() {
+				public Integer apply(Void written) {
+					return id;
+				}
+			});
+	}
+
+	public static PriceIndex.Page cruisesUnderCost(DBproject esql, int cost, String after, int limit) throws Exception { //9
+		checkCost(cost);
+		return cruisesByCost(esql, Integer.MIN_VALUE, cost - 1, after, limit);
+	}
+
+	public static PriceIndex.Page cruisesBetweenCost(DBproject esql, int minCost, int maxCost, String after, int limit) throws Exception {
+		checkCost(minCost);
+		checkCost(maxCost);
+		if (minCost > maxCost) {
+			throw new Exception("Minimum cost cannot be greater than maximum cost.");
+		}
+		return cruisesByCost(esql, minCost, maxCost, after, limit);
+	}
+
+	private static PriceIndex.Page cruisesByCost(DBproject esql, int minCost, int maxCost, String after, int limit) throws Exception {
+		if (limit < 1) {
+			throw new Exception("Page size must be greater than 0.");
+		}
+		esql.beginReporting();
+		try {
+			return esql.priceIndex().page(esql, minCost, maxCost, after, limit);
+		} finally {
+			esql.endReporting();
+		}
+	}
+
+	/**
+	 * @return the departures from one day to the other, both included, with at least minSeats free seats
+	 */
+	public static SeatInventory.Departures departuresWithSeats(DBproject esql, LocalDate from, LocalDate to, int minSeats) throws Exception { //11
+		checkNotNegative(minSeats, "Number of seats cannot be negative.");
+		if (from.isAfter(to)) {
+			throw new Exception("First departure day cannot be after the last.");
+		}
+		// Answer from the seat inventory's calendar when it is loaded
+		SeatInventory.Departures found = esql.inventory().departing(from, to, minSeats);
+		if (found != null) {
+			return found;
+		}
+
+		found = departuresFromSnapshot(esql, from, to, minSeats);
+		if (found != null) {
+			return found;
+		}
+
+		TypedResult result;
+		esql.beginReporting();
+		try {
+			result = esql.executeQueryAndReturnTyped(DEPARTURES_WITH_SEATS, from, to, minSeats);
+		} finally {
+			esql.endReporting();
+		}
+		found = new SeatInventory.Departures(result.size());
+		for (int row = 0; row < result.size(); row++) {
+			found.add(result.getInt(row, 0), result.getInt(row, 1), result.getInt(row, 2));
+		}
+		return found;
+	}
+
+	// the departures in the range with the ships' seats from the reference snapshot, null when it
+	// is not loaded or lacks one of the cruises or its ship, which the query with the ships then answers
+	private static SeatInventory.Departures departuresFromSnapshot(DBproject esql, LocalDate from, LocalDate to, int minSeats) throws SQLException {
+		ReferenceSnapshot snapshot = esql.snapshot();
+		if (!snapshot.isWarm()) {
+			return null;
+		}
+		TypedResult result;
+		esql.beginReporting();
+		try {
+			result = esql.executeQueryAndReturnTyped(DEPARTURES_SOLD, from, to);
+		} finally {
+			esql.endReporting();
+		}
+		SeatInventory.Departures found = new SeatInventory.Departures(result.size());
+		for (int row = 0; row < result.size(); row++) {
+			int seats = snapshot.cruiseSeats(result.getInt(row, 0));
+			if (seats < 0) {
+				// UNKNOWN, or NO_SHIP, which may have changed since the snapshot was loaded
+				return null;
+			}
+			int free = seats - result.getInt(row, 2);
+			if (free >= minSeats) {
+				found.add(result.getInt(row, 0), result.getInt(row, 1), free);
+			}
+		}
+		return found;
+	}
+
 	public static void AddShip(DBproject esql) { //1
 		int ID;
 		String make;
@@ -369,9 +1492,7 @@ public class DBproject {
 				// Read input
 				ID = Integer.parseInt(in.readLine());
 
-				if (ID < 0) {
-					throw new Exception("ID cannot be negative.");
-				}
+				checkNotNegative(ID, "ID cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -386,11 +1507,7 @@ public class DBproject {
 				// Read input
 				make = in.readLine();
 
-				if (make.length() > 32) {
-					throw new Exception("Input cannot exceed 32 characters.");
-				} else if (make.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				}
+				checkText(make, 32);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -405,11 +1522,7 @@ public class DBproject {
 				// Read input
 				model = in.readLine();
 
-				if (model.length() > 64) {
-					throw new Exception("Input cannot exceed 64 characters.");
-				} else if (model.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				}
+				checkText(model, 64);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -424,9 +1537,7 @@ public class DBproject {
 				// Read input
 				age = Integer.parseInt(in.readLine());
 
-				if (age < 0) {
-					throw new Exception("Age input cannot be negative.");
-				}
+				checkNotNegative(age, "Age input cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -441,13 +1552,7 @@ public class DBproject {
 				// Read input
 				seats = Integer.parseInt(in.readLine());
 
-				if (seats < 0) {
-					throw new Exception("Seats input cannot be negative.");
-				} else if (seats > 500) {
-					throw new Exception("Seats input cannot be greater than 500.");
-				} else if (seats == 0) {
-					throw new Exception("Number of seats cannot be 0.");
-				}
+				checkSeats(seats);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -457,8 +1562,7 @@ public class DBproject {
 
 		// Insert details into database
 		try {
-			String input = "INSERT INTO Ship(ID, make, model, age, seats) VALUES (" + ID + ", '" + make + "', '" + model + "', " + age + " , " + seats + ")";
-			esql.executeUpdate(input);
+			await(esql.service().addShip(ID, make, model, age, seats));
 
 			System.out.println(ANSI_GREEN + "Details inserted into Ship DB." + ANSI_RESET);
 		} catch (Exception e) {
@@ -478,9 +1582,7 @@ public class DBproject {
 				// Read input
 				id = Integer.parseInt(in.readLine());
 
-				if (id < 0) {
-					throw new Exception("Input cannot be negative.");
-				}
+				checkNotNegative(id, "Input cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -495,15 +1597,7 @@ public class DBproject {
 				// Read input
 				fullname = in.readLine();
 
-				if (fullname.length() > 128) {
-					throw new Exception("Captain's full name cannot exceed 128 characters.");
-				} else if (fullname.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				}
-				//Check if input contains digits
-				else if (fullname.matches(".*\\d.*")) {
-					throw new Exception("Captain's name should not contain digits.");
-				}
+				checkCaptainName(fullname);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -518,13 +1612,7 @@ public class DBproject {
 				//Read input
 				nationality = in.readLine();
 
-				if (nationality.length() > 24) {
-					throw new Exception("Nationality cannot exceed 24 characters.");
-				} else if (nationality.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				} else if (nationality.matches(".*\\d,*")) {
-					throw new Exception("Nationality should not contain digits.");
-				}
+				checkNationality(nationality);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -534,8 +1622,7 @@ public class DBproject {
 
 		//Insert details into database
 		try {
-			String input = "INSERT INTO Captain(id, fullname, nationality) VALUES (" + id + ", '" + fullname + "', '" + nationality + "')";
-			esql.executeUpdate(input);
+			await(esql.service().addCaptain(id, fullname, nationality));
 
 			System.out.println(ANSI_GREEN + "Details inserted into Captain DB." + ANSI_RESET);
 		} catch (Exception e) {
@@ -559,9 +1646,7 @@ public class DBproject {
 			try {
 				// Read input
 				cnum = Integer.parseInt(in.readLine());
-				if (cnum < 0) {
-					throw new Exception("Input cannot be negative.");
-				}
+				checkNotNegative(cnum, "Input cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -576,9 +1661,7 @@ public class DBproject {
 				//Read input
 				cost = Integer.parseInt(in.readLine());
 
-				if (cost < 1) {
-					throw new Exception("Cost must be greater than 0.");
-				}
+				checkCost(cost);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -593,9 +1676,7 @@ public class DBproject {
 				//Read input
 				num_sold = Integer.parseInt(in.readLine());
 
-				if (num_sold < 0) {
-					throw new Exception("Input cannot be negative.");
-				}
+				checkNotNegative(num_sold, "Input cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -610,9 +1691,7 @@ public class DBproject {
 				//Read input
 				num_stops = Integer.parseInt(in.readLine());
 
-				if (num_stops < 0) {
-					throw new Exception("Number of stops cannot be negative.");
-				}
+				checkNotNegative(num_stops, "Number of stops cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -669,17 +1748,7 @@ public class DBproject {
 				// Read input
 				arrival_port = in.readLine();
 
-				boolean hasLower = !arrival_port.equals(arrival_port.toUpperCase());
-
-				if (arrival_port.length() != 5) {
-					throw new Exception("Port code must be 5 characters.");
-				} else if (arrival_port.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				} else if (arrival_port.matches(".*\\d.*")) {
-					throw new Exception("Port code cannot contain digits.");
-				} else if (hasLower) {
-					throw new Exception("Port code must be in all uppercase characters.");
-				}
+				checkPortCode(arrival_port);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -694,17 +1763,7 @@ public class DBproject {
 				//Read input
 				departure_port = in.readLine();
 
-				boolean hasLower = !departure_port.equals(departure_port.toUpperCase());
-
-				if (departure_port.length() != 5) {
-					throw new Exception("Port code must be 5 characters.");
-				} else if (departure_port.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				} else if (departure_port.matches(".*\\d.*")) {
-					throw new Exception("Port code cannot contain digits.");
-				} else if (hasLower) {
-					throw new Exception("Port code must be in all uppercase characters.");
-				}
+				checkPortCode(departure_port);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -714,8 +1773,7 @@ public class DBproject {
 
 		//Insert details into database
 		try {
-			String input = "INSERT INTO Cruise(cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) VALUES (" + cnum + ", " + cost + ", " + num_sold + ", " + num_stops + ", '" + actual_departure_date + "', '" + actual_arrival_date + "', '" + arrival_port + "', '" + departure_port + "')";
-			esql.executeUpdate(input);
+			await(esql.service().addCruise(cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port));
 
 			System.out.println(ANSI_GREEN + "Details inserted into Cruise DB." + ANSI_RESET);
 		} catch (Exception e) {
@@ -729,45 +1787,22 @@ public class DBproject {
 			int customerID = readInt("\tCustomer ID: ", Integer.MIN_VALUE, Integer.MAX_VALUE);
 			int cruiseNumber = readInt("\tCruise number: ", Integer.MIN_VALUE, Integer.MAX_VALUE);
 
-			// Get seat data from database
-			String query = "SELECT C.num_sold, S.seats FROM CruiseInfo CI, Cruise C, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND CI.cruise_id = %d";
-			List<List<String>> result = esql.executeQueryAndReturnResult(String.format(query, cruiseNumber));
-			if (result.size() == 0) {
-				System.out.println(ANSI_RED + "Cruise number not found" + ANSI_RESET);
-				return;
-			}
-
-			// Calculate number of seats remaining
-			int sold = Integer.parseInt(result.get(0).get(0));
-			int seats = Integer.parseInt(result.get(0).get(1));
-			int available = seats - sold;
-
-			// If reservation already exists with the customer and cruise number then attempt to get off waitlist
-			result = esql.executeQueryAndReturnResult(String.format("SELECT COUNT(*) FROM Reservation WHERE ccid = %d AND cid = %d AND status = 'W'", customerID, cruiseNumber));
-			if (Integer.parseInt(result.get(0).get(0)) > 0) {
-				if (available > 0) {
-					esql.executeUpdate(String.format("UPDATE Reservation SET status='C' WHERE ccid = %d and cid = %d", customerID, cruiseNumber));
+			// Take a seat and write the reservation in one atomic step
+			SeatBooking.Result result = await(esql.service().bookCruise(customerID, cruiseNumber));
+			switch (result.outcome) {
+				case NOT_FOUND:
+					System.out.println(ANSI_RED + "Cruise number not found" + ANSI_RESET);
+					break;
+				case PROMOTED:
 					System.out.println(ANSI_GREEN + "Found existing reservation with waitlisted status. Cruise currently has empty seats. Customer's reservation status will be changed from waitlisted to confirmed." + ANSI_RESET);
-				} else {
+					break;
+				case STILL_WAITLISTED:
 					System.out.println(ANSI_YELLOW + "Cruise is full. Customer will remain on waitlist." + ANSI_RESET);
-				}
-
-				return;
-			}
-
-			// Reservation doesn't exist. Make a new one
-			String status;
-			if (available > 0) {
-				status = "R";
-			} else {
-				status = "W";
+					break;
+				default:
+					System.out.println(ANSI_GREEN + String.format("Reserved customer %d for cruise %d with status %s", customerID, cruiseNumber, result.status()) + ANSI_RESET);
+					break;
 			}
-
-			// Get next highest ID and insert into database
-			int currentID = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(rnum) FROM Reservation").get(0).get(0));
-			esql.executeUpdate(String.format("INSERT INTO Reservation (rnum, ccid, cid, status) VALUES (%d, %d, %d, '%s')", currentID + 1, customerID, cruiseNumber, status));
-
-			System.out.println(ANSI_GREEN + String.format("Reserved customer %d for cruise %d with status %s", customerID, cruiseNumber, status) + ANSI_RESET);
 		} catch (Exception e) {
 			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
 		}
@@ -775,27 +1810,24 @@ public class DBproject {
 
 	public static void ListNumberOfAvailableSeats(DBproject esql) { //5
 		try {
-			String query = "SELECT C.num_sold, S.seats FROM CruiseInfo CI, Cruise C, Ship S, Schedule SCH WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND CI.cruise_id = SCH.cruiseNum AND CI.cruise_id = %d AND SCH.departure_time='%s-%s-%s'";
-
 			// Read input
 			int cruiseNumber = readInt("\tCruise number: ", Integer.MIN_VALUE, Integer.MAX_VALUE);
-			String month = String.format("%2d", readInt("\tMonth: ", 1, 12)).replace(' ', '0');
-			String day = String.format("%2d", readInt("\tDay: ", 1, 31)).replace(' ', '0');
-			String year = String.format("%4d", readInt("\tYear: ", 0, 9999)).replace(' ', '0');
+			int month = readInt("\tMonth: ", 1, 12);
+			int day = readInt("\tDay: ", 1, 31);
+			int year = readInt("\tYear: ", 0, 9999);
+			LocalDate departure = LocalDate.of(year, month, day);
 
 			// Try to find cruise with given input parameters
-			List<List<String>> result = esql.executeQueryAndReturnResult(String.format(query, cruiseNumber, year, month, day));
+			int available = await(esql.service().availableSeats(cruiseNumber, departure));
 
-			// No result found of size of result is 0
-			if (result.size() == 0) {
+			// No cruise departs that day
+			if (available < 0) {
 				System.out.println(ANSI_RED + "No cruise found" + ANSI_RESET);
 				return;
 			}
 
 			// Result found. Print to user
-			int sold = Integer.parseInt(result.get(0).get(0));
-			int seats = Integer.parseInt(result.get(0).get(1));
-			System.out.println(ANSI_GREEN + String.format("Number of seats available: %d", seats - sold) + ANSI_RESET);
+			System.out.println(ANSI_GREEN + String.format("Number of seats available: %d", available) + ANSI_RESET);
 		} catch (Exception e) {
 			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
 		}
@@ -803,8 +1835,12 @@ public class DBproject {
 
 	public static void ListsTotalNumberOfRepairsPerShip(DBproject esql) { //6
 		try {
+			Map<Integer, Long> counts = await(esql.service().repairsPerShip());
 			System.out.print(ANSI_GREEN);
-			esql.executeQueryAndPrintResult("SELECT R.ship_id, COUNT(*) FROM Repairs R GROUP BY R.ship_id ORDER BY COUNT(*) DESC");
+			System.out.println("ship_id\tcount\t");
+			for (Map.Entry<Integer, Long> count : counts.entrySet()) {
+				System.out.println(count.getKey() + "\t" + count.getValue() + "\t");
+			}
 			System.out.print(ANSI_RESET);
 		} catch (Exception e) {
 			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
@@ -831,8 +1867,8 @@ public class DBproject {
 
 		try {
 			// Findindatabase with given parameter and print to user
-			List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT COUNT(*) FROM Reservation R WHERE R.status = '%s' AND R.cid = %s", status, cruiseNumber));
-			System.out.println(ANSI_GREEN + String.format("For cruise %s there are %s passengers with the status %s", cruiseNumber, result.get(0).get(0), status) + ANSI_RESET);
+			long count = await(esql.service().passengersWithStatus(cruiseNumber, status));
+			System.out.println(ANSI_GREEN + String.format("For cruise %s there are %d passengers with the status %s", cruiseNumber, count, status) + ANSI_RESET);
 		} catch (Exception e) {
 			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
 		}
@@ -843,9 +1879,9 @@ public class DBproject {
 		String firstName;
 		String lastName;
 		String gender;
-		String month;
-		String day;
-		String year;
+		int month;
+		int day;
+		int year;
 		String address;
 		String phone;
 		String zip;
@@ -857,9 +1893,7 @@ public class DBproject {
 				// Read input
 				ID = Integer.parseInt(in.readLine());
 
-				if (ID < 0) {
-					throw new Exception("ID cannot be negative.");
-				}
+				checkNotNegative(ID, "ID cannot be negative.");
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -873,13 +1907,7 @@ public class DBproject {
 			try {
 				firstName = in.readLine();
 
-				if (firstName.length() > 24) {
-					throw new Exception("Input cannot exceed 24 characters.");
-				} else if (firstName.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				} else if (firstName.matches(".*\\d.*")) {
-					throw new Exception("First name cannot contain digits.");
-				}
+				checkPersonName(firstName, "First name cannot contain digits.");
 
 				break;
 			} catch (Exception e) {
@@ -894,13 +1922,7 @@ public class DBproject {
 			try {
 				lastName = in.readLine();
 
-				if (lastName.length() > 24) {
-					throw new Exception("Input cannot exceed 24 characters.");
-				} else if (lastName.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				} else if (lastName.matches(".*\\d.*")) {
-					throw new Exception("Last name cannot contain digits.");
-				}
+				checkPersonName(lastName, "Last name cannot contain digits.");
 
 				break;
 			} catch (Exception e) {
@@ -915,9 +1937,7 @@ public class DBproject {
 
 			try {
 				gender = in.readLine().trim().toUpperCase();
-				if (!gender.equals("F") && !gender.equals("M")) {
-					throw new Exception("Input must be either F or M.");
-				}
+				checkGender(gender);
 
 				break;
 			} catch (Exception e) {
@@ -927,9 +1947,9 @@ public class DBproject {
 		} while (true);
 
 		// DOB
-		month = String.format("%2d", readInt("\tDOB Month: ", 1, 12)).replace(' ', '0');
-		day = String.format("%2d", readInt("\tDOB Day: ", 1, 31)).replace(' ', '0');
-		year = String.format("%4d", readInt("\tDOB Year: ", 0, 9999)).replace(' ', '0');
+		month = readInt("\tDOB Month: ", 1, 12);
+		day = readInt("\tDOB Day: ", 1, 31);
+		year = readInt("\tDOB Year: ", 0, 9999);
 
 		// Address
 		do {
@@ -937,11 +1957,7 @@ public class DBproject {
 			try {
 				address = in.readLine();
 
-				if (address.length() > 256) {
-					throw new Exception("Input cannot exceed 256 characters.");
-				} else if (address.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				}
+				checkText(address, 256);
 
 				break;
 			} catch (Exception e) {
@@ -956,13 +1972,7 @@ public class DBproject {
 			try {
 				zip = in.readLine();
 
-				if (zip.length() > 10) {
-					throw new Exception("Input cannot exceed 10 characters.");
-				} else if (zip.length() == 0) {
-					throw new Exception("Input cannot be null.");
-				} else if (!zip.matches("[0-9]+")) {
-					throw new Exception("Input must only contain digits");
-				}
+				checkZip(zip);
 
 				break;
 			} catch (Exception e) {
@@ -977,11 +1987,7 @@ public class DBproject {
 			try {
 				phone = in.readLine();
 
-				if (phone.length() != 10) {
-					throw new Exception("Input must be 10 digits long");
-				} else if (!phone.matches("[0-9]+")) {
-					throw new Exception("Input must only contain digits");
-				}
+				checkPhone(phone);
 				break;
 			} catch (Exception e) {
 				System.out.println(ANSI_RED + e + ANSI_RESET);
@@ -991,8 +1997,7 @@ public class DBproject {
 
 		try {
 			// Get next highest ID and insert into database
-			int currentID = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(id) FROM Customer").get(0).get(0));
-			esql.executeUpdate(String.format("INSERT INTO Customer (id, fname, lname, gtype, dob, address, zipcode, phone) VALUES (%d, '%s', '%s', '%s', '%s-%s-%s', '%s', '%s', '%s')", currentID + 1, firstName, lastName, gender, year, month, day, address, zip, phone));
+			await(esql.service().addCustomer(firstName, lastName, gender, LocalDate.of(year, month, day), address, zip, phone));
 
 			System.out.println(ANSI_GREEN + "Successfully added new customer" + ANSI_RESET);
 		} catch (Exception e) {
@@ -1005,8 +2010,6 @@ public class DBproject {
 
 		do{
 			try{
-         			String query = "SELECT c.cnum, s.departure_time, c.cost FROM Cruise c, Schedule s WHERE s.cruiseNum = c.cnum AND c.cost <";
-
 				// Read input
 				input = readInt("\tEnter cost: $", Integer.MIN_VALUE, Integer.MAX_VALUE);
 
@@ -1015,17 +2018,108 @@ public class DBproject {
 					throw new Exception("Cost must be greater than 0.");
 				}
 	
-				// Add input to query string
-         			query += input;
-        	 		esql.executeQueryAndPrintResult(query);	
-			
-				// Count number of results
-				List<List<String>> rows = esql.executeQueryAndReturnResult(query);
-		      		System.out.println (ANSI_GREEN + "Found  " + rows.size() + " cruise(s) with cost under $" + input + ANSI_RESET);
+				// the count comes with the first page, no second query
+				PriceIndex.Page page = await(esql.service().cruisesUnderCost(input, null, COST_PAGE_SIZE));
+		      		System.out.println (ANSI_GREEN + "Found  " + page.total + " cruise(s) with cost under $" + input + ANSI_RESET);
+				while (page.size() > 0) {
+					System.out.print(ANSI_GREEN);
+					System.out.println("cnum\tdeparture_time\tcost\t");
+					for (int i = 0; i < page.size(); i++) {
+						System.out.println(page.cruise(i) + "\t" + page.departure(i) + "\t" + page.cost(i) + "\t");
+					}
+					System.out.print(ANSI_RESET);
+					if (page.next() == null) {
+						break;
+					}
+					System.out.print("\tPress Enter for more, q to stop: ");
+					String more = in.readLine();
+					if (more == null || more.trim().equalsIgnoreCase("q")) {
+						break;
+					}
+					page = await(esql.service().cruisesUnderCost(input, page.next(), COST_PAGE_SIZE));
+				}
 				break;
 			}catch(Exception e){
          			System.err.println (ANSI_RED + e.getMessage() + ANSI_RESET);
 			}
 		} while (true);
    	}
+
+	public static void ListDeparturesWithSeats(DBproject esql) { //11
+		try {
+			// Read input
+			LocalDate from = readDate("First departure day");
+			LocalDate to = readDate("Last departure day");
+			int seats = readInt("\tFree seats needed: ", 0, Integer.MAX_VALUE);
+
+			SeatInventory.Departures found = await(esql.service().departuresWithSeats(from, to, seats));
+			if (found.size() == 0) {
+				System.out.println(ANSI_RED + "No cruise found" + ANSI_RESET);
+				return;
+			}
+
+			// Result found. Print to user
+			System.out.print(ANSI_GREEN);
+			System.out.println("cnum\tdeparture_time\tavailable\t");
+			for (int i = 0; i < found.size(); i++) {
+				System.out.println(found.cruise(i) + "\t" + found.departure(i) + "\t" + found.available(i) + "\t");
+			}
+			System.out.println("Found " + found.size() + " departure(s)");
+			System.out.print(ANSI_RESET);
+		} catch (Exception e) {
+			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
+		}
+	}
+
+	// asks for a day as month, day and year, like option 5
+	private static LocalDate readDate(String label) throws Exception {
+		System.out.println("\t" + label + ":");
+		int month = readInt("\tMonth: ", 1, 12);
+		int day = readInt("\tDay: ", 1, 31);
+		int year = readInt("\tYear: ", 0, 9999);
+		try {
+			return LocalDate.of(year, month, day);
+		} catch (DateTimeException e) {
+			throw new Exception("Invalid date: " + e.getMessage());
+		}
+	}
+
+	public static void BatchBookCruises(DBproject esql) { //10
+		String path;
+		String outcomePath;
+
+		do {
+			System.out.print("\tEnter path of the ccid,cid file: ");
+			try {
+				path = in.readLine().trim();
+				if (!new File(path).isFile()) {
+					throw new Exception("File not found: " + path);
+				}
+				break;
+			} catch (Exception e) {
+				System.out.println(ANSI_RED + e + ANSI_RESET);
+				continue;
+			}
+		} while (true);
+
+		try {
+			System.out.print("\tEnter path for the outcome file (blank to print): ");
+			outcomePath = in.readLine().trim();
+
+			BufferedReader input = new BufferedReader(new FileReader(path));
+			PrintWriter report = new PrintWriter(System.out);
+			PrintWriter outcomes = outcomePath.length() == 0 ? report : new PrintWriter(new BufferedWriter(new FileWriter(outcomePath)));
+			try {
+				BatchBooking.Summary summary = BatchBooking.run(esql, input, outcomes, report);
+				System.out.println(ANSI_GREEN + summary + ANSI_RESET);
+			} finally {
+				input.close();
+				if (outcomes != report) {
+					outcomes.close();
+				}
+			}
+		} catch (Exception e) {
+			System.err.println(ANSI_RED + e.getMessage() + ANSI_RESET);
+		}
+	}
 }
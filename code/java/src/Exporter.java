@@ -0,0 +1,201 @@
+/*
+ * Table and query export
+ * ======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a whole table (e.g. Reservation, Schedule, Repairs) or the result
+ * of a query to a file, as CSV with a header line or as JSON Lines (one
+ * object per row). CSV is produced by the server with COPY ... TO STDOUT and
+ * written through as it arrives; JSON Lines rows are read through a cursor
+ * and formatted here. Either way the rows go through one large buffer,
+ * gzipped when asked for or when the file name ends in .gz, and memory use
+ * does not grow with the size of the export.
+ *
+ * Exports are reporting reads, so they go to a replica when one is
+ * configured.
+ *
+ */
+
+public class Exporter {
+	public enum Format { CSV, JSONL }
+
+	// anything else is taken as a query
+	private static final Pattern TABLE = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Totals of one export.
+	 */
+	public static class Summary {
+		public long rows = 0;
+		public long bytes = 0;
+		public double seconds = 0;
+
+		public double rowsPerSecond() {
+			return seconds == 0 ? 0.0 : rows / seconds;
+		}
+
+		public String toString() {
+			return String.format("%d rows, %d bytes in %.2f s (%.1f rows/sec)", rows, bytes, seconds, rowsPerSecond());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + Exporter.class.getName() +
+				" <dbname> <port> <user> (--table <name> | --query <select>) --out <file> [--format csv|jsonl] [--gzip]");
+			return;
+		}
+		String source = null;
+		String out = null;
+		Format format = null;
+		boolean gzip = false;
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+				case "--table":
+				case "--query": source = args[++i]; break;
+				case "--out": out = args[++i]; break;
+				case "--format": format = Format.valueOf(args[++i].toUpperCase()); break;
+				case "--gzip": gzip = true; break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					return;
+			}
+		}
+		if (source == null || out == null) {
+			System.err.println("Both a --table or --query and --out are required.");
+			return;
+		}
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			// an export is meant to be complete
+			esql.setMaxRows(0);
+			File file = new File(out);
+			Summary summary = export(esql, source, file, format == null ? formatOf(file) : format, gzip);
+			System.out.println(file + ": " + summary);
+		} catch (Exception e) {
+			System.err.println(DBproject.ANSI_RED + e.getMessage() + DBproject.ANSI_RESET);
+		} finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * @return JSONL for .jsonl and .json files, gzipped or not, CSV otherwise
+	 */
+	public static Format formatOf(File file) {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		return name.endsWith(".jsonl") || name.endsWith(".json") ? Format.JSONL : Format.CSV;
+	}
+
+	/**
+	 * Writes every row of a table or query to the file. A file left by a
+	 * failed export is deleted.
+	 *
+	 * @param esql the database connection
+	 * @param source a table name, or a query without parameters
+	 * @param file the file to write, replaced if it exists
+	 * @param format CSV or JSONL
+	 * @param gzip compress the file; also done when its name ends in .gz
+	 * @return rows and bytes written, and the time taken
+	 * @throws java.sql.SQLException when the query failed
+	 * @throws java.io.IOException when the file cannot be written
+	 */
+	public static Summary export(DBproject esql, String source, File file, Format format, boolean gzip) throws SQLException, IOException {
+		Summary summary = new Summary();
+		long start = System.nanoTime();
+		String query = source.trim().replaceAll(";+\\s*$", "");
+		boolean table = TABLE.matcher(query).matches();
+
+		OutputStream out = new FileOutputStream(file);
+		boolean done = false;
+		esql.beginReporting();
+		try {
+			if (gzip || file.getName().toLowerCase().endsWith(".gz")) {
+				out = new GZIPOutputStream(out, 1 << 16);
+			}
+			out = new BufferedOutputStream(out, BUFFER_SIZE);
+			if (format == Format.CSV) {
+				summary.rows = esql.copyOut("COPY " + (table ? query : "(" + query + ")") + " TO STDOUT WITH (FORMAT csv, HEADER)", out);
+				out.close();
+			} else {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+				summary.rows = esql.executeQueryAndStream(table ? "SELECT * FROM " + query : query, jsonLines(writer, file));
+				writer.close();
+			}
+			done = true;
+		} finally {
+			esql.endReporting();
+			if (!done) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// the export already failed
+				}
+				file.delete();
+			}
+		}
+		summary.bytes = file.length();
+		summary.seconds = (System.nanoTime() - start) / 1e9;
+		return summary;
+	}
+
+	// one JSON object per row, named by column; numbers and booleans stay unquoted
+	private static RowHandler jsonLines(final Writer writer, final File file) {
+		return new RowHandler() {
+			private final StringBuilder line = new StringBuilder(256);
+			private String[] names = null;
+
+			public void row(ResultSet rs) throws SQLException {
+				if (names == null) {
+					ResultSetMetaData rsmd = rs.getMetaData();
+					names = new String[rsmd.getColumnCount()];
+					for (int i = 0; i < names.length; i++) {
+						names[i] = rsmd.getColumnName(i + 1);
+					}
+				}
+				line.setLength(0);
+				line.append('{');
+				for (int i = 0; i < names.length; i++) {
+					if (i > 0) {
+						line.append(',');
+					}
+					Json.quote(line, names[i]);
+					line.append(':');
+					Json.value(line, rs.getObject(i + 1));
+				}
+				line.append("}\n");
+				try {
+					writer.append(line);
+				} catch (IOException e) {
+					throw new SQLException("Cannot write " + file + ": " + e.getMessage(), e);
+				}
+			}
+		};
+	}
+}
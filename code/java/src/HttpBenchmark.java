@@ -0,0 +1,156 @@
+/*
+ * HTTP front end benchmark
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures requests per second and latency of a running CruiseHttpServer,
+ * normally over loopback, from many client threads. Each thread sends its
+ * next request as soon as the previous answer arrives, over connections the
+ * client keeps alive, cycling through the given paths. Requests sent during
+ * --warmup are not recorded. Only GET paths are sent, so the benchmark
+ * changes nothing.
+ *
+ */
+
+public class HttpBenchmark {
+	private final List<URL> targets = new ArrayList<URL>();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong ok = new AtomicLong();
+	private final AtomicLong tooMany = new AtomicLong();
+	private final AtomicLong otherStatus = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	HttpBenchmark(String baseUrl, List<String> paths) throws IOException {
+		for (String path : paths) {
+			targets.add(new URL(baseUrl.replaceAll("/+$", "") + path));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + HttpBenchmark.class.getName() +
+				" <base url, e.g. http://127.0.0.1:8080> [--threads 32] [--virtual] [--duration 30] [--warmup 5] [--path <path>]...");
+			return;
+		}
+		int threads = 32;
+		boolean virtual = false;
+		int duration = 30;
+		int warmup = 5;
+		List<String> paths = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "--threads": threads = Integer.parseInt(args[++i]); break;
+				case "--virtual": virtual = true; break;
+				case "--duration": duration = Integer.parseInt(args[++i]); break;
+				case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+				case "--path": paths.add(args[++i]); break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					return;
+			}
+		}
+		if (paths.isEmpty()) {
+			paths.add("/cruises?under=500&limit=20");
+			paths.add("/passengers?cruise=1&status=R");
+			paths.add("/repairs");
+		}
+
+		HttpBenchmark benchmark = new HttpBenchmark(args[0], paths);
+		System.out.println(String.format("%d %s threads, %d s warmup + %d s, paths %s",
+			threads, virtual ? "virtual" : "platform", warmup, duration, paths));
+		benchmark.run(threads, virtual, warmup, duration);
+	}
+
+	void run(int threads, boolean virtual, int warmup, int duration) throws InterruptedException {
+		final long measureFrom = System.nanoTime() + warmup * 1000000000L;
+		final long end = measureFrom + duration * 1000000000L;
+		final AtomicLong ticket = new AtomicLong();
+
+		Runnable worker = new Runnable() {
+			public void run() {
+				while (true) {
+					long start = System.nanoTime();
+					if (start >= end) {
+						return;
+					}
+					URL target = targets.get((int) (ticket.getAndIncrement() % targets.size()));
+					int status = -1;
+					try {
+						status = get(target);
+					} catch (IOException e) {
+						// counted as an error below
+					}
+					if (start < measureFrom) {
+						continue;
+					}
+					latency.record(System.nanoTime() - start);
+					if (status < 0) {
+						errors.incrementAndGet();
+					} else if (status == 429) {
+						tooMany.incrementAndGet();
+					} else if (status / 100 == 2) {
+						ok.incrementAndGet();
+					} else {
+						otherStatus.incrementAndGet();
+					}
+				}
+			}
+		};
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = LoadGenerator.newThread(worker, virtual);
+			workers[t].start();
+		}
+		for (Thread thread : workers) {
+			thread.join();
+		}
+		report((System.nanoTime() - measureFrom) / 1e9);
+	}
+
+	// reads the whole answer so the connection goes back to the keep-alive cache
+	private static int get(URL target) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(30000);
+		int status = connection.getResponseCode();
+		InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (body != null) {
+			try {
+				byte[] buffer = new byte[8192];
+				while (body.read(buffer) >= 0) {
+					// discarded
+				}
+			} finally {
+				body.close();
+			}
+		}
+		return status;
+	}
+
+	private void report(double seconds) {
+		System.out.println(String.format("%10s %10s %10s %10s %10s %10s %10s %8s %8s %8s",
+			"requests", "req/sec", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "2xx", "429", "other"));
+		System.out.println(String.format("%10d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f %8d %8d %8d",
+			latency.count(), latency.count() / seconds, latency.meanNanos() / 1e6, latency.percentileNanos(50) / 1e6,
+			latency.percentileNanos(99) / 1e6, latency.percentileNanos(99.9) / 1e6, latency.maxNanos() / 1e6,
+			ok.get(), tooMany.get(), otherStatus.get() + errors.get()));
+		if (errors.get() > 0) {
+			System.out.println(errors.get() + " requests failed without an answer");
+		}
+	}
+}
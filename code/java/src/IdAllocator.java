@@ -0,0 +1,234 @@
+/*
+ * Block id allocator
+ * ==================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out ids of one table from blocks reserved on a Postgres sequence
+ * (hi/lo). The sequence's INCREMENT BY is the block size, so one nextval
+ * reserves that many ids for this program alone; they are then taken one
+ * by one from an AtomicLong without a lock or a round trip. Only the thread
+ * that finds the block used up goes to the database, and threads that run
+ * out at the same time wait for that one block instead of each fetching
+ * their own. The refill lock is a ReentrantLock rather than a monitor, so
+ * a virtual thread waiting for the round trip does not pin its carrier.
+ * Callers should not hold row locks while taking ids; a refill may have to
+ * wait for a pooled connection.
+ *
+ * Ids are unique across every client that takes them from the sequence,
+ * but not gapless: ids left in a block when the program exits are never
+ * used. See sql/id_blocks.sql for the sequences.
+ *
+ */
+
+public class IdAllocator {
+	private static final String NEXT_BLOCK =
+		"SELECT nextval(CAST(? AS regclass)), S.seqincrement FROM pg_sequence S WHERE S.seqrelid = CAST(? AS regclass)";
+
+	/**
+	 * The ids from next up to, not including, end.
+	 */
+	private static class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end) {
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+
+	private final DBproject esql;
+	private final String sequence;
+	private volatile Block block = new Block(0, 0);
+	private final ReentrantLock refill = new ReentrantLock();
+	private final AtomicLong blocks = new AtomicLong();
+
+	public IdAllocator(DBproject esql, String sequence) {
+		this.esql = esql;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return an id no other caller or client has been given
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public long next() throws SQLException {
+		while (true) {
+			Block current = block;
+			long id = current.next.getAndIncrement();
+			if (id < current.end) {
+				return id;
+			}
+			refill.lock();
+			try {
+				// another thread may have fetched one while this one waited
+				if (block == current) {
+					block = fetch();
+				}
+			} finally {
+				refill.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return next() for a column of type INTEGER
+	 * @throws java.sql.SQLException when a new block cannot be reserved or
+	 * the sequence has passed the INTEGER range
+	 */
+	public int nextInt() throws SQLException {
+		long id = next();
+		if (id > Integer.MAX_VALUE) {
+			throw new SQLException("Sequence " + sequence + " is past the INTEGER range: " + id);
+		}
+		return (int) id;
+	}
+
+	private Block fetch() throws SQLException {
+		TypedResult result;
+		try {
+			result = esql.executeQueryAndReturnTyped(NEXT_BLOCK, sequence, sequence);
+		} catch (SQLException e) {
+			if ("42P01".equals(e.getSQLState())) {
+				throw new SQLException("Sequence " + sequence + " does not exist, run sql/id_blocks.sql.", e.getSQLState(), e);
+			}
+			throw e;
+		}
+		long start = result.getLong(0, 0);
+		long size = result.getLong(0, 1);
+		blocks.incrementAndGet();
+		return new Block(start, start + Math.max(size, 1));
+	}
+
+	/**
+	 * Drops the rest of the current block, e.g. after the table was
+	 * reloaded and the sequence reset.
+	 */
+	public void reset() {
+		refill.lock();
+		try {
+			block = new Block(0, 0);
+		} finally {
+			refill.unlock();
+		}
+	}
+
+	/**
+	 * @return blocks reserved so far
+	 */
+	public long blocks() {
+		return blocks.get();
+	}
+
+	public String sequence() {
+		return sequence;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + IdAllocator.class.getName() +
+				" <dbname> <port> <user> [--sequence customer_id_seq] [--threads 16] [--virtual] [--ids 1000000]");
+			return;
+		}
+		String sequence = "customer_id_seq";
+		int threads = 16;
+		boolean virtual = false;
+		int ids = 1000000;
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+				case "--sequence": sequence = args[++i]; break;
+				case "--threads": threads = Integer.parseInt(args[++i]); break;
+				case "--virtual": virtual = true; break;
+				case "--ids": ids = Integer.parseInt(args[++i]); break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					return;
+			}
+		}
+
+		if (System.getProperty("cruise.pool.maxSize") == null) {
+			System.setProperty("cruise.pool.maxSize", Integer.toString(Math.min(threads, 64)));
+		}
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			// the ids taken here are used up, they only leave a gap in the table
+			System.out.println(String.format("%d %s threads taking %d ids from %s",
+				threads, virtual ? "virtual" : "platform", ids, sequence));
+			System.out.println(String.format("%-12s %12s %12s %10s", "allocator", "ids/sec", "round trips", "unique"));
+			IdAllocator allocator = new IdAllocator(esql, sequence);
+			throughput("blocks", esql, allocator, null, threads, virtual, ids);
+			// one nextval per id, what the statements did before; far fewer ids, it is slow
+			throughput("nextval", esql, null, sequence, threads, virtual, Math.max(ids / 100, threads));
+		} catch (Exception e) {
+			System.err.println(DBproject.ANSI_RED + e.getMessage() + DBproject.ANSI_RESET);
+		} finally {
+			esql.cleanup();
+		}
+	}
+
+	// every thread takes its share of ids, either from the allocator or with one nextval each
+	private static void throughput(String name, final DBproject esql, final IdAllocator allocator, final String sequence,
+			int threads, boolean virtual, int ids) throws Exception {
+		final long[] taken = new long[ids];
+		final AtomicLong ticket = new AtomicLong();
+		final AtomicLong roundTrips = new AtomicLong();
+		final Exception[] failure = new Exception[1];
+		final int total = ids;
+		long blocksBefore = allocator == null ? 0 : allocator.blocks();
+
+		Runnable worker = new Runnable() {
+			public void run() {
+				try {
+					long slot;
+					while ((slot = ticket.getAndIncrement()) < total) {
+						if (allocator != null) {
+							taken[(int) slot] = allocator.next();
+						} else {
+							taken[(int) slot] = esql.executeQueryAndReturnTyped("SELECT nextval(CAST(? AS regclass))", sequence).getLong(0, 0);
+							roundTrips.incrementAndGet();
+						}
+					}
+				} catch (Exception e) {
+					synchronized (failure) {
+						failure[0] = e;
+					}
+				}
+			}
+		};
+
+		long start = System.nanoTime();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = LoadGenerator.newThread(worker, virtual);
+			workers[t].start();
+		}
+		for (Thread thread : workers) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		if (allocator != null) {
+			roundTrips.set(allocator.blocks() - blocksBefore);
+		}
+
+		Arrays.sort(taken);
+		boolean unique = true;
+		for (int i = 1; i < taken.length && unique; i++) {
+			unique = taken[i] != taken[i - 1];
+		}
+		System.out.println(String.format("%-12s %12.0f %12d %10s", name, total / seconds, roundTrips.get(), unique ? "yes" : "NO"));
+	}
+}
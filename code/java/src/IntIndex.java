@@ -0,0 +1,107 @@
+/*
+ * Primitive int key index
+ * =======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from int keys (cruise numbers, ship ids, ...) to dense
+ * slots 0..size-1, so per-key data can live in plain primitive arrays.
+ * Not thread safe while it is being filled; once filled it can be shared
+ * for reading.
+ *
+ */
+
+public class IntIndex {
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private int[] keys;
+	private int[] slots;
+	private int size = 0;
+
+	public IntIndex(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+		keys = new int[capacity];
+		slots = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * @return the slot of the key, -1 if the key is not in the index
+	 */
+	public int get(int key) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key) {
+				return slots[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds the key if it is missing.
+	 *
+	 * @return the slot of the key, new keys get the next free slot
+	 */
+	public int add(int key) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Key " + key + " is reserved.");
+		}
+		int slot = get(key);
+		if (slot >= 0) {
+			return slot;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		insert(key, size);
+		return size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return approximate heap bytes of the index
+	 */
+	public long estimatedBytes() {
+		return 32 + 2 * (16 + 4L * keys.length);
+	}
+
+	private void insert(int key, int slot) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (keys[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		slots[i] = slot;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new int[capacity];
+		slots = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				insert(oldKeys[i], oldSlots[i]);
+			}
+		}
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
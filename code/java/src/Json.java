@@ -0,0 +1,119 @@
+/*
+ * Minimal JSON writer
+ * ===================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Builds one JSON object at a time for the machine-readable outputs
+ * (script mode, HTTP, exports). Values may be strings, numbers, booleans,
+ * null, nested Json objects, maps and collections. JSON has no NaN or
+ * Infinity, so a non-finite double or float (e.g. from a float8 or numeric
+ * column) is written as null.
+ *
+ */
+
+public class Json {
+	private final StringBuilder out = new StringBuilder("{");
+	private boolean first = true;
+
+	/**
+	 * Adds a field to the object.
+	 *
+	 * @return this object, for chaining
+	 */
+	public Json put(String name, Object value) {
+		if (!first) {
+			out.append(',');
+		}
+		first = false;
+		quote(out, name);
+		out.append(':');
+		value(out, value);
+		return this;
+	}
+
+	public String toString() {
+		return out.toString() + "}";
+	}
+
+	/**
+	 * Appends a value in JSON notation.
+	 */
+	public static void value(StringBuilder out, Object value) {
+		if (value == null || !finite(value)) {
+			out.append("null");
+		} else if (value instanceof Json) {
+			out.append(value.toString());
+		} else if (value instanceof Number || value instanceof Boolean) {
+			out.append(value.toString());
+		} else if (value instanceof Map) {
+			Json object = new Json();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				object.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			out.append(object.toString());
+		} else if (value instanceof Collection) {
+			out.append('[');
+			boolean firstItem = true;
+			for (Object item : (Collection<?>) value) {
+				if (!firstItem) {
+					out.append(',');
+				}
+				firstItem = false;
+				value(out, item);
+			}
+			out.append(']');
+		} else {
+			quote(out, value.toString());
+		}
+	}
+
+	private static boolean finite(Object value) {
+		if (value instanceof Double || value instanceof Float) {
+			return Double.isFinite(((Number) value).doubleValue());
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a string as a quoted, escaped JSON string.
+	 */
+	public static void quote(StringBuilder out, String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+					break;
+			}
+		}
+		out.append('"');
+	}
+}
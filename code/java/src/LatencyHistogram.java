@@ -0,0 +1,130 @@
+/*
+ * Latency histogram
+ * =================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of nanosecond latencies in the style of HdrHistogram:
+ * every power of two is split into SUB_BUCKETS linear buckets, so recorded
+ * values keep better than 1% precision from nanoseconds to hours in a fixed
+ * 59 KB of counters. Recording is lock-free and may be done from any number
+ * of threads.
+ *
+ */
+
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values below 2 * SUB_BUCKETS are counted exactly
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	private static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	// the middle of the range of values counted in the bucket
+	private static long value(int index) {
+		int shift = index < 2 * SUB_BUCKETS ? 0 : (index >> SUB_BUCKET_BITS) - 1;
+		long lower = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+		return lower + ((1L << shift) >> 1);
+	}
+
+	/**
+	 * @param nanos the latency to record; negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long seen;
+		while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+		}
+	}
+
+	public long count() {
+		return total.get();
+	}
+
+	public long maxNanos() {
+		return max.get();
+	}
+
+	public double meanNanos() {
+		long n = total.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency at or below which that share of the values fall
+	 */
+	public long percentileNanos(double percentile) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(value(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		total.addAndGet(other.total.get());
+		sum.addAndGet(other.sum.get());
+		long seen;
+		long value = other.max.get();
+		while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+		}
+	}
+
+	/**
+	 * Forgets every recorded value. Values recorded concurrently with a reset
+	 * may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Copies the counters of this histogram to a new one.
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+}
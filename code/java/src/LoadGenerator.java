@@ -0,0 +1,295 @@
+/*
+ * Mixed workload load generator
+ * =============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a weighted mix of menu operations from many threads and reports,
+ * per operation, throughput, p50/p99/p99.9 latency, errors and conflicts.
+ *
+ * Closed loop (the default): every worker starts its next operation as soon
+ * as the previous one returns. Open loop (--rate): operations are scheduled
+ * at a fixed rate no matter how fast the database answers, and latency is
+ * measured from the scheduled start, so queueing behind a slow operation is
+ * counted instead of hidden. Operations started during --warmup are run but
+ * not recorded. It writes to the database, so run it against a scratch copy.
+ *
+ */
+
+public class LoadGenerator {
+	// SQL states of writes that lost against a concurrent transaction
+	private static final String[] CONFLICT_STATES = { "40001", "40P01", "55P03", "23505" };
+
+	/**
+	 * Counters of one operation of the mix.
+	 */
+	static class OpStats {
+		final String name;
+		final int weight;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong conflicts = new AtomicLong();
+
+		OpStats(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+	}
+
+	private static volatile boolean warnedNoVirtual = false;
+
+	private final DBproject esql;
+	private final List<OpStats> mix = new ArrayList<OpStats>();
+	private int totalWeight = 0;
+
+	// sample data drawn from the loaded tables
+	private final int[] customers;
+	private final int[] cruises;
+	private final int[] departureCruises;
+	private final LocalDate[] departures;
+
+	LoadGenerator(DBproject esql, String mixSpec) throws Exception {
+		this.esql = esql;
+		for (String part : mixSpec.split(",")) {
+			String[] nameWeight = part.trim().split("=");
+			String name = nameWeight[0].trim();
+			if (!name.equals("seats") && !name.equals("book") && !name.equals("status") && !name.equals("customer")) {
+				throw new Exception("Unknown operation in mix: " + name + " (use seats, book, status, customer)");
+			}
+			int weight = nameWeight.length > 1 ? Integer.parseInt(nameWeight[1].trim()) : 1;
+			if (weight > 0) {
+				mix.add(new OpStats(name, weight));
+				totalWeight += weight;
+			}
+		}
+		if (totalWeight == 0) {
+			throw new Exception("The mix has no operations");
+		}
+
+		customers = column(esql.executeQueryAndReturnTyped("SELECT id FROM Customer"));
+		cruises = column(esql.executeQueryAndReturnTyped("SELECT cruise_id FROM CruiseInfo"));
+		TypedResult schedule = esql.executeQueryAndReturnTyped("SELECT cruiseNum, departure_time - DATE '1970-01-01' FROM Schedule");
+		departureCruises = new int[schedule.size()];
+		departures = new LocalDate[schedule.size()];
+		for (int row = 0; row < schedule.size(); row++) {
+			departureCruises[row] = schedule.getInt(row, 0);
+			departures[row] = LocalDate.ofEpochDay(schedule.getInt(row, 1));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + LoadGenerator.class.getName() +
+				" <dbname> <port> <user> [--threads 16] [--virtual] [--rate <ops/sec>] [--duration 60] [--warmup 10]" +
+				" [--mix seats=50,book=30,status=15,customer=5]");
+			return;
+		}
+		int threads = 16;
+		boolean virtual = false;
+		double rate = 0;
+		int duration = 60;
+		int warmup = 10;
+		String mixSpec = "seats=50,book=30,status=15,customer=5";
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+				case "--threads": threads = Integer.parseInt(args[++i]); break;
+				case "--virtual": virtual = true; break;
+				case "--rate": rate = Double.parseDouble(args[++i]); break;
+				case "--duration": duration = Integer.parseInt(args[++i]); break;
+				case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+				case "--mix": mixSpec = args[++i]; break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					return;
+			}
+		}
+
+		// the pool bounds concurrency at the database, not the number of workers
+		if (System.getProperty("cruise.pool.maxSize") == null) {
+			System.setProperty("cruise.pool.maxSize", Integer.toString(Math.min(threads, 64)));
+		}
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			if (Boolean.parseBoolean(System.getProperty("cruise.inventory.enabled", "true"))) {
+				esql.inventory().warm(esql);
+			}
+			if (Boolean.parseBoolean(System.getProperty("cruise.counters.enabled", "true"))) {
+				esql.counters().warm(esql);
+			}
+			LoadGenerator generator = new LoadGenerator(esql, mixSpec);
+			System.out.println(String.format("%d %s threads, %s, %d s warmup + %d s, mix %s",
+				threads, virtual ? "virtual" : "platform", rate > 0 ? String.format("open loop at %.0f ops/sec", rate) : "closed loop",
+				warmup, duration, mixSpec));
+			generator.run(threads, virtual, rate, warmup, duration);
+			System.out.println("Pool: " + esql.poolStats());
+		} finally {
+			esql.cleanup();
+		}
+	}
+
+	private static int[] column(TypedResult result) {
+		int[] values = new int[result.size()];
+		for (int row = 0; row < values.length; row++) {
+			values[row] = result.getInt(row, 0);
+		}
+		return values;
+	}
+
+	void run(int threads, boolean virtual, final double rate, int warmup, int duration) throws InterruptedException {
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmup * 1000000000L;
+		final long end = measureFrom + duration * 1000000000L;
+		final long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+		final AtomicLong ticket = new AtomicLong();
+
+		Runnable worker = new Runnable() {
+			public void run() {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (true) {
+					long scheduled;
+					if (interval > 0) {
+						scheduled = start + ticket.getAndIncrement() * interval;
+						if (scheduled >= end) {
+							return;
+						}
+						long wait;
+						while ((wait = scheduled - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					} else {
+						scheduled = System.nanoTime();
+						if (scheduled >= end) {
+							return;
+						}
+					}
+					OpStats op = pick(random);
+					boolean failed = false;
+					boolean conflict = false;
+					try {
+						execute(op.name, random);
+					} catch (Exception e) {
+						failed = true;
+						conflict = isConflict(e);
+					}
+					if (scheduled >= measureFrom) {
+						op.latency.record(System.nanoTime() - scheduled);
+						if (conflict) {
+							op.conflicts.incrementAndGet();
+						} else if (failed) {
+							op.errors.incrementAndGet();
+						}
+					}
+				}
+			}
+		};
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = newThread(worker, virtual);
+			workers[t].start();
+		}
+		for (Thread thread : workers) {
+			thread.join();
+		}
+		report((System.nanoTime() - measureFrom) / 1e9);
+	}
+
+	private OpStats pick(ThreadLocalRandom random) {
+		int r = random.nextInt(totalWeight);
+		for (OpStats op : mix) {
+			r -= op.weight;
+			if (r < 0) {
+				return op;
+			}
+		}
+		return mix.get(mix.size() - 1);
+	}
+
+	private void execute(String op, ThreadLocalRandom random) throws Exception {
+		switch (op) {
+			case "seats": {
+				int d = random.nextInt(departures.length);
+				DBproject.availableSeats(esql, departureCruises[d], departures[d]);
+				break;
+			}
+			case "book":
+				DBproject.bookCruise(esql, customers[random.nextInt(customers.length)], cruises[random.nextInt(cruises.length)]);
+				break;
+			case "status":
+				DBproject.passengersWithStatus(esql, cruises[random.nextInt(cruises.length)], String.valueOf("WCR".charAt(random.nextInt(3))));
+				break;
+			case "customer":
+				DBproject.await(DBproject.addCustomer(esql, "Load", "Generator", random.nextBoolean() ? "F" : "M", LocalDate.of(1980, 1, 1).plusDays(random.nextInt(10000)),
+					"1 Load Street", "92521", "9515551234"));
+				break;
+		}
+	}
+
+	// a duplicate key means a concurrent writer took the same key first
+	private static boolean isConflict(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SQLException) {
+				String state = ((SQLException) t).getSQLState();
+				for (String conflict : CONFLICT_STATES) {
+					if (conflict.equals(state)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts the worker on a virtual thread when the JVM has them (Java 21+),
+	 * otherwise on a platform thread.
+	 */
+	static Thread newThread(Runnable task, boolean virtual) {
+		if (virtual) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				return (Thread) Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class).invoke(builder, task);
+			} catch (ReflectiveOperationException e) {
+				if (!warnedNoVirtual) {
+					warnedNoVirtual = true;
+					System.err.println("Virtual threads are not available on Java " + System.getProperty("java.version") + ", using platform threads");
+				}
+			}
+		}
+		return new Thread(task);
+	}
+
+	private void report(double seconds) {
+		System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s %10s %8s %9s",
+			"op", "count", "ops/sec", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "conflicts"));
+		LatencyHistogram all = new LatencyHistogram();
+		long errors = 0;
+		long conflicts = 0;
+		for (OpStats op : mix) {
+			print(op.name, op.latency, op.errors.get(), op.conflicts.get(), seconds);
+			all.add(op.latency);
+			errors += op.errors.get();
+			conflicts += op.conflicts.get();
+		}
+		print("total", all, errors, conflicts, seconds);
+	}
+
+	private static void print(String name, LatencyHistogram h, long errors, long conflicts, double seconds) {
+		System.out.println(String.format("%-10s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f %8d %9d",
+			name, h.count(), h.count() / seconds, h.meanNanos() / 1e6, h.percentileNanos(50) / 1e6, h.percentileNanos(99) / 1e6,
+			h.percentileNanos(99.9) / 1e6, h.maxNanos() / 1e6, errors, conflicts));
+	}
+}
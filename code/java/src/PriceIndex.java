@@ -0,0 +1,275 @@
+/*
+ * In-memory price index
+ * =====================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every scheduled departure with its cruise's cost, sorted by (cost, cruise
+ * number, schedule id) in parallel int arrays. A cost range is two binary
+ * searches, so its row count is known without reading the rows, and a page
+ * starts at the first row after the previous page's last key, so paging
+ * stays stable and cheap however deep it goes. Pages share the index's
+ * arrays instead of copying them.
+ *
+ * The index is a snapshot: it is rebuilt every refresh interval, and until
+ * it is loaded the same pages are answered by SQL.
+ *
+ */
+
+public class PriceIndex {
+	private static final String LOAD =
+		"SELECT c.cnum, c.cost, s.departure_time - DATE '1970-01-01', s.id FROM Cruise c, Schedule s " +
+		"WHERE s.cruiseNum = c.cnum ORDER BY c.cost, c.cnum, s.id";
+
+	private static final String PAGE =
+		"SELECT c.cnum, c.cost, s.departure_time - DATE '1970-01-01', s.id FROM Cruise c, Schedule s " +
+		"WHERE s.cruiseNum = c.cnum AND c.cost BETWEEN ? AND ? AND (c.cost, c.cnum, s.id) > (?, ?, ?) " +
+		"ORDER BY c.cost, c.cnum, s.id LIMIT ?";
+
+	private static final String COUNT =
+		"SELECT COUNT(*) FROM Cruise c, Schedule s WHERE s.cruiseNum = c.cnum AND c.cost BETWEEN ? AND ?";
+
+	/**
+	 * One page of departures in (cost, cruise number, schedule id) order.
+	 */
+	public static class Page {
+		// departures in the whole cost range, not just this page
+		public final int total;
+		private final int[] cruises;
+		private final int[] costs;
+		private final int[] days;
+		private final int[] ids;
+		private final int from;
+		private final int to;
+		private final boolean more;
+
+		Page(int total, int[] cruises, int[] costs, int[] days, int[] ids, int from, int to, boolean more) {
+			this.total = total;
+			this.cruises = cruises;
+			this.costs = costs;
+			this.days = days;
+			this.ids = ids;
+			this.from = from;
+			this.to = to;
+			this.more = more;
+		}
+
+		public int size() {
+			return to - from;
+		}
+
+		public int cruise(int i) {
+			return cruises[from + i];
+		}
+
+		public int cost(int i) {
+			return costs[from + i];
+		}
+
+		public LocalDate departure(int i) {
+			return LocalDate.ofEpochDay(days[from + i]);
+		}
+
+		/**
+		 * @return the cursor to pass for the next page, null on the last page
+		 */
+		public String next() {
+			if (!more || to == from) {
+				return null;
+			}
+			return costs[to - 1] + "." + cruises[to - 1] + "." + ids[to - 1];
+		}
+	}
+
+	/**
+	 * One loaded copy of the index.
+	 */
+	private static class Table {
+		int size = 0;
+		int[] cruises = new int[1024];
+		int[] costs = new int[1024];
+		int[] days = new int[1024];
+		int[] ids = new int[1024];
+
+		void add(int cruise, int cost, int day, int id) {
+			if (size == cruises.length) {
+				cruises = Arrays.copyOf(cruises, size * 2);
+				costs = Arrays.copyOf(costs, size * 2);
+				days = Arrays.copyOf(days, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			cruises[size] = cruise;
+			costs[size] = cost;
+			days[size] = day;
+			ids[size] = id;
+			size++;
+		}
+
+		// first row in [from, to) whose key is greater than the cursor
+		int after(int from, int to, int[] key) {
+			int lo = from;
+			int hi = to;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = Integer.compare(costs[mid], key[0]);
+				if (c == 0) c = Integer.compare(cruises[mid], key[1]);
+				if (c == 0) c = Integer.compare(ids[mid], key[2]);
+				if (c <= 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		// first row whose cost is at least cost
+		int costAtLeast(int cost) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (costs[mid] < cost) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	private volatile Table table = null;
+	private ScheduledExecutorService refresher = null;
+
+	/**
+	 * Loads every scheduled departure, streamed and already sorted by the
+	 * database. Readers keep using the previous copy until the new one is
+	 * complete.
+	 *
+	 * @param esql the database connection
+	 * @throws java.sql.SQLException when loading failed
+	 */
+	public void warm(DBproject esql) throws SQLException {
+		final Table loaded = new Table();
+		esql.executeQueryAndStream(LOAD, new RowHandler() {
+			public void row(ResultSet rs) throws SQLException {
+				loaded.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4));
+			}
+		});
+		table = loaded;
+	}
+
+	public boolean isWarm() {
+		return table != null;
+	}
+
+	/**
+	 * @return the number of departures indexed
+	 */
+	public int size() {
+		Table t = table;
+		return t == null ? 0 : t.size;
+	}
+
+	/**
+	 * Pages through the departures of cruises costing minCost to maxCost.
+	 *
+	 * @param esql the database connection, used until the index is loaded
+	 * @param minCost lowest cost, inclusive
+	 * @param maxCost highest cost, inclusive
+	 * @param after the cursor of the previous page, null for the first page
+	 * @param limit most rows on the page
+	 * @return the page, with the row count of the whole range
+	 * @throws java.sql.SQLException when the index is not loaded and the query failed
+	 */
+	public Page page(DBproject esql, int minCost, int maxCost, String after, int limit) throws SQLException {
+		int[] key = after == null ? null : cursor(after);
+		Table t = table;
+		if (t == null) {
+			return query(esql, minCost, maxCost, key, limit);
+		}
+		int lo = t.costAtLeast(minCost);
+		int hi = Math.max(lo, maxCost == Integer.MAX_VALUE ? t.size : t.costAtLeast(maxCost + 1));
+		int from = key == null ? lo : t.after(lo, hi, key);
+		int to = (int) Math.min(hi, (long) from + limit);
+		return new Page(hi - lo, t.cruises, t.costs, t.days, t.ids, from, to, to < hi);
+	}
+
+	// the same page from the database, for when the index is not loaded
+	private static Page query(DBproject esql, int minCost, int maxCost, int[] key, int limit) throws SQLException {
+		if (key == null) {
+			key = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+		}
+		// one extra row tells whether there is a next page
+		int fetch = limit == Integer.MAX_VALUE ? limit : limit + 1;
+		TypedResult rows = esql.executeQueryAndReturnTyped(PAGE, minCost, maxCost, key[0], key[1], key[2], fetch);
+		int total = (int) esql.executeQueryAndReturnTyped(COUNT, minCost, maxCost).getLong(0, 0);
+		int size = Math.min(rows.size(), limit);
+		int[] cruises = new int[size];
+		int[] costs = new int[size];
+		int[] days = new int[size];
+		int[] ids = new int[size];
+		for (int row = 0; row < size; row++) {
+			cruises[row] = rows.getInt(row, 0);
+			costs[row] = rows.getInt(row, 1);
+			days[row] = rows.getInt(row, 2);
+			ids[row] = rows.getInt(row, 3);
+		}
+		return new Page(total, cruises, costs, days, ids, 0, size, rows.size() > limit);
+	}
+
+	private static int[] cursor(String after) {
+		String[] parts = after.split("\\.");
+		try {
+			if (parts.length != 3) {
+				throw new NumberFormatException();
+			}
+			return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid page cursor: " + after);
+		}
+	}
+
+	/**
+	 * Rebuilds the index every intervalSeconds on a daemon thread.
+	 */
+	public void startRefresh(final DBproject esql, long intervalSeconds) {
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "price-index-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					warm(esql);
+				} catch (SQLException e) {
+					System.err.println(DBproject.ANSI_RED + "Price index not refreshed: " + e.getMessage() + DBproject.ANSI_RESET);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Per-query metrics
+ * =================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters kept by the DBproject helpers for every SQL template they run:
+ * calls, errors, rows returned or affected, bytes of result held in memory,
+ * and a latency histogram that includes the wait for a pooled connection.
+ * The counters are readable over JMX and can be written on an interval to
+ * a Prometheus text file, e.g. for node_exporter's textfile collector.
+ *
+ */
+
+public class QueryMetrics implements QueryMetricsMXBean {
+	// templates past the limit are counted together, so ad-hoc SQL cannot grow the map without bound
+	private static final String OTHER = "(other)";
+
+	/**
+	 * Counters of one template.
+	 */
+	static class Stats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+	}
+
+	/**
+	 * Point-in-time copy of one template's counters, as shown over JMX.
+	 */
+	public static class Snapshot {
+		private final long calls;
+		private final long errors;
+		private final long rows;
+		private final long bytes;
+		private final LatencyHistogram latency;
+
+		Snapshot(Stats stats) {
+			calls = stats.calls.get();
+			errors = stats.errors.get();
+			rows = stats.rows.get();
+			bytes = stats.bytes.get();
+			latency = stats.latency.copy();
+		}
+
+		public long getCalls() { return calls; }
+		public long getErrors() { return errors; }
+		public long getRows() { return rows; }
+		public long getBytes() { return bytes; }
+		public double getMeanMillis() { return latency.meanNanos() / 1e6; }
+		public double getP50Millis() { return latency.percentileNanos(50) / 1e6; }
+		public double getP99Millis() { return latency.percentileNanos(99) / 1e6; }
+		public double getP999Millis() { return latency.percentileNanos(99.9) / 1e6; }
+		public double getMaxMillis() { return latency.maxNanos() / 1e6; }
+	}
+
+	private final ConcurrentHashMap<String, Stats> templates = new ConcurrentHashMap<String, Stats>();
+	private final int maxTemplates;
+	private ObjectName registeredAs = null;
+	private ScheduledExecutorService exporter = null;
+	private File exportFile = null;
+
+	public QueryMetrics(int maxTemplates) {
+		this.maxTemplates = maxTemplates;
+	}
+
+	/**
+	 * Records one execution of a template.
+	 *
+	 * @param sql the SQL template, with ? for each parameter
+	 * @param nanos time from asking for a connection to the last row read
+	 * @param rows rows returned or affected, -1 when the statement failed
+	 * @param bytes bytes of result materialized in memory, 0 if streamed
+	 */
+	public void record(String sql, long nanos, long rows, long bytes) {
+		Stats stats = templates.get(sql);
+		if (stats == null) {
+			String key = templates.size() < maxTemplates ? sql : OTHER;
+			stats = templates.get(key);
+			if (stats == null) {
+				Stats created = new Stats();
+				stats = templates.putIfAbsent(key, created);
+				if (stats == null) {
+					stats = created;
+				}
+			}
+		}
+		stats.calls.incrementAndGet();
+		stats.latency.record(nanos);
+		if (rows < 0) {
+			stats.errors.incrementAndGet();
+		} else {
+			stats.rows.addAndGet(rows);
+			stats.bytes.addAndGet(bytes);
+		}
+	}
+
+	public Map<String, Snapshot> getQueries() {
+		Map<String, Snapshot> snapshot = new TreeMap<String, Snapshot>();
+		for (Map.Entry<String, Stats> entry : templates.entrySet()) {
+			snapshot.put(entry.getKey(), new Snapshot(entry.getValue()));
+		}
+		return snapshot;
+	}
+
+	public int getTemplateCount() {
+		return templates.size();
+	}
+
+	public long getTotalCalls() {
+		long total = 0;
+		for (Stats stats : templates.values()) {
+			total += stats.calls.get();
+		}
+		return total;
+	}
+
+	public long getTotalErrors() {
+		long total = 0;
+		for (Stats stats : templates.values()) {
+			total += stats.errors.get();
+		}
+		return total;
+	}
+
+	public void reset() {
+		templates.clear();
+	}
+
+	/**
+	 * Registers this object with the platform MBean server. A second
+	 * DBproject in the same JVM gets a numbered name.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("cruise:type=QueryMetrics");
+			for (int i = 2; server.isRegistered(name); i++) {
+				name = new ObjectName("cruise:type=QueryMetrics,instance=" + i);
+			}
+			server.registerMBean(this, name);
+			registeredAs = name;
+		} catch (Exception e) {
+			System.err.println("Query metrics not registered with JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the metrics to file every intervalSeconds. The file is replaced
+	 * atomically so a scraper never reads a partial file.
+	 *
+	 * @param file the Prometheus text file
+	 * @param intervalSeconds seconds between writes
+	 */
+	public void startExport(File file, long intervalSeconds) {
+		exportFile = file;
+		exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "query-metrics-export");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		exporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				export();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private void export() {
+		try {
+			File tmp = new File(exportFile.getPath() + ".tmp");
+			PrintWriter out = new PrintWriter(new FileWriter(tmp));
+			try {
+				writePrometheus(out);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), exportFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Unable to write query metrics to " + exportFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes every template's counters in the Prometheus text format.
+	 */
+	public void writePrometheus(PrintWriter out) {
+		Map<String, Snapshot> queries = getQueries();
+		header(out, "cruise_query_calls_total", "counter", "Statements executed per SQL template.");
+		for (Map.Entry<String, Snapshot> q : queries.entrySet()) {
+			out.println("cruise_query_calls_total" + labels(q.getKey(), null) + " " + q.getValue().calls);
+		}
+		header(out, "cruise_query_errors_total", "counter", "Statements that failed per SQL template.");
+		for (Map.Entry<String, Snapshot> q : queries.entrySet()) {
+			out.println("cruise_query_errors_total" + labels(q.getKey(), null) + " " + q.getValue().errors);
+		}
+		header(out, "cruise_query_rows_total", "counter", "Rows returned or affected per SQL template.");
+		for (Map.Entry<String, Snapshot> q : queries.entrySet()) {
+			out.println("cruise_query_rows_total" + labels(q.getKey(), null) + " " + q.getValue().rows);
+		}
+		header(out, "cruise_query_bytes_total", "counter", "Bytes of results materialized in memory per SQL template.");
+		for (Map.Entry<String, Snapshot> q : queries.entrySet()) {
+			out.println("cruise_query_bytes_total" + labels(q.getKey(), null) + " " + q.getValue().bytes);
+		}
+		header(out, "cruise_query_duration_seconds", "summary", "Statement latency per SQL template, including the wait for a connection.");
+		for (Map.Entry<String, Snapshot> q : queries.entrySet()) {
+			LatencyHistogram h = q.getValue().latency;
+			for (String quantile : new String[] { "0.5", "0.99", "0.999" }) {
+				out.println("cruise_query_duration_seconds" + labels(q.getKey(), quantile) + " " + h.percentileNanos(Double.parseDouble(quantile) * 100) / 1e9);
+			}
+			out.println("cruise_query_duration_seconds_sum" + labels(q.getKey(), null) + " " + h.meanNanos() * h.count() / 1e9);
+			out.println("cruise_query_duration_seconds_count" + labels(q.getKey(), null) + " " + h.count());
+		}
+	}
+
+	private static void header(PrintWriter out, String name, String type, String help) {
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " " + type);
+	}
+
+	private static String labels(String sql, String quantile) {
+		StringBuilder label = new StringBuilder("{query=\"");
+		// templates span several lines in the source, the label must not
+		String collapsed = sql.replaceAll("\\s+", " ").trim();
+		for (int i = 0; i < collapsed.length(); i++) {
+			char c = collapsed.charAt(i);
+			if (c == '\\' || c == '"') {
+				label.append('\\');
+			}
+			label.append(c);
+		}
+		label.append('"');
+		if (quantile != null) {
+			label.append(",quantile=\"").append(quantile).append('"');
+		}
+		return label.append('}').toString();
+	}
+
+	/**
+	 * Stops the export after writing the file a last time, and unregisters
+	 * from JMX.
+	 */
+	public void close() {
+		if (exporter != null) {
+			exporter.shutdownNow();
+			export();
+			exporter = null;
+		}
+		if (registeredAs != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+			} catch (Exception e) {
+				// ignored, the JVM is going away with it
+			}
+			registeredAs = null;
+		}
+	}
+}
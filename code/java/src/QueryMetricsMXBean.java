@@ -0,0 +1,34 @@
+/*
+ * JMX view of the query metrics
+ * =============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Map;
+
+/**
+ * Management interface of QueryMetrics, registered as cruise:type=QueryMetrics
+ * so jconsole or any JMX client can read the per-template counters.
+ *
+ */
+
+public interface QueryMetricsMXBean {
+	/**
+	 * @return the counters of every SQL template seen, keyed by template
+	 */
+	Map<String, QueryMetrics.Snapshot> getQueries();
+
+	int getTemplateCount();
+
+	long getTotalCalls();
+
+	long getTotalErrors();
+
+	/**
+	 * Forgets every counter.
+	 */
+	void reset();
+}
@@ -0,0 +1,655 @@
+/*
+ * Reference table snapshot
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a copy of the small, read-mostly tables Ship, Captain,
+ * Technician, Cruise and CruiseInfo in primitive arrays, so their columns
+ * can be looked up by id without a join; cruiseSeats() follows a cruise to
+ * its ship's seat count. The five tables are loaded at the same time, each
+ * with one binary COPY ... TO STDOUT, and decoded here without a ResultSet.
+ * Text columns that repeat (ship make and model, nationality, port codes)
+ * are stored once in a dictionary and referred to by int codes.
+ *
+ * Cruise.num_sold changes with every booking and is not part of the copy;
+ * SeatInventory keeps it. A refresh builds a complete new copy while readers
+ * keep using the previous one, so a ship's seats or a cruise's ship changed
+ * since the last load are seen only after the next one. Cruises and ships
+ * added since then are UNKNOWN, and callers ask the database.
+ *
+ */
+
+public class ReferenceSnapshot {
+	// the cruise, or its ship, is not in the snapshot; ask the database
+	public static final int UNKNOWN = -2;
+	// the cruise is in the snapshot without a ship
+	public static final int NO_SHIP = -1;
+
+	private static final String COPY_SHIPS =
+		"COPY (SELECT id, make::text, model::text, age::int4, seats::int4 FROM Ship) TO STDOUT WITH (FORMAT binary)";
+	private static final String COPY_CAPTAINS =
+		"COPY (SELECT id, fullname::text, nationality::text FROM Captain) TO STDOUT WITH (FORMAT binary)";
+	private static final String COPY_TECHNICIANS =
+		"COPY (SELECT id, full_name::text FROM Technician) TO STDOUT WITH (FORMAT binary)";
+	private static final String COPY_CRUISES =
+		"COPY (SELECT cnum, cost::int4, num_stops::int4, actual_departure_date, actual_arrival_date, " +
+		"departure_port::text, arrival_port::text FROM Cruise) TO STDOUT WITH (FORMAT binary)";
+	private static final String COPY_CRUISE_INFO =
+		"COPY (SELECT cruise_id, ship_id, captain_id FROM CruiseInfo ORDER BY ciid) TO STDOUT WITH (FORMAT binary)";
+
+	// binary COPY dates count days from 2000-01-01
+	private static final int POSTGRES_EPOCH_DAY = (int) LocalDate.of(2000, 1, 1).toEpochDay();
+	private static final byte[] SIGNATURE = "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * Distinct strings of a column, numbered from 0 in order of first use.
+	 */
+	public static class Dictionary {
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private final List<String> values = new ArrayList<String>();
+
+		// not thread safe while the snapshot is being loaded
+		int add(String value) {
+			if (value == null) {
+				return -1;
+			}
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+
+		/**
+		 * @return the code of the value, -1 if it does not occur
+		 */
+		public int code(String value) {
+			Integer code = codes.get(value);
+			return code == null ? -1 : code;
+		}
+
+		/**
+		 * @return the value of the code, null for -1
+		 */
+		public String value(int code) {
+			return code < 0 ? null : values.get(code);
+		}
+
+		public int size() {
+			return values.size();
+		}
+
+		long estimatedBytes() {
+			long bytes = 64 + 48L * values.size();
+			for (String value : values) {
+				bytes += stringBytes(value);
+			}
+			return bytes;
+		}
+	}
+
+	private static class Ships {
+		IntIndex index;
+		int[] makes;
+		int[] models;
+		int[] ages;
+		int[] seats;
+	}
+
+	private static class Captains {
+		IntIndex index;
+		String[] names;
+		int[] nationalities;
+	}
+
+	private static class Technicians {
+		IntIndex index;
+		String[] names;
+	}
+
+	private static class Cruises {
+		IntIndex index;
+		int[] costs;
+		int[] stops;
+		int[] departures;
+		int[] arrivals;
+		int[] departurePorts;
+		int[] arrivalPorts;
+		// from CruiseInfo, -1 for a cruise without one
+		int[] ships;
+		int[] captains;
+	}
+
+	/**
+	 * One loaded copy; never changed once published.
+	 */
+	private static class Tables {
+		final Dictionary makes = new Dictionary();
+		final Dictionary models = new Dictionary();
+		final Dictionary nationalities = new Dictionary();
+		final Dictionary ports = new Dictionary();
+		Ships ships;
+		Captains captains;
+		Technicians technicians;
+		Cruises cruises;
+		double loadMillis;
+		long bytesCopied;
+	}
+
+	private volatile Tables tables = null;
+	private ScheduledExecutorService refresher = null;
+
+	/**
+	 * Loads all five tables at once. Readers keep using the previous copy
+	 * until the new one is complete.
+	 *
+	 * @param esql the database connection
+	 * @throws java.sql.SQLException when loading failed
+	 */
+	public void warm(final DBproject esql) throws SQLException {
+		long start = System.nanoTime();
+		final Tables loaded = new Tables();
+		ExecutorService pool = CruiseService.newExecutor("snapshot-load");
+		try {
+			Future<byte[]> ships = pool.submit(copy(esql, COPY_SHIPS));
+			Future<byte[]> captains = pool.submit(copy(esql, COPY_CAPTAINS));
+			Future<byte[]> technicians = pool.submit(copy(esql, COPY_TECHNICIANS));
+			Future<byte[]> cruises = pool.submit(copy(esql, COPY_CRUISES));
+			Future<byte[]> cruiseInfo = pool.submit(copy(esql, COPY_CRUISE_INFO));
+			// decoded one after the other, the dictionaries are not thread safe
+			loaded.ships = decodeShips(get(ships), loaded);
+			loaded.captains = decodeCaptains(get(captains), loaded);
+			loaded.technicians = decodeTechnicians(get(technicians), loaded);
+			loaded.cruises = decodeCruises(get(cruises), loaded);
+			decodeCruiseInfo(get(cruiseInfo), loaded);
+		} finally {
+			pool.shutdownNow();
+		}
+		loaded.loadMillis = (System.nanoTime() - start) / 1e6;
+		tables = loaded;
+	}
+
+	private static Callable<byte[]> copy(final DBproject esql, final String sql) {
+		return new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+				esql.beginReporting();
+				try {
+					esql.copyOut(sql, out);
+				} finally {
+					esql.endReporting();
+				}
+				return out.toByteArray();
+			}
+		};
+	}
+
+	private static byte[] get(Future<byte[]> copy) throws SQLException {
+		try {
+			return copy.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("Snapshot not loaded: " + e.getCause(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Snapshot load interrupted.", e);
+		}
+	}
+
+	private static Ships decodeShips(byte[] data, Tables loaded) throws SQLException {
+		List<ByteBuffer> rows = rows(data, 5);
+		Ships ships = new Ships();
+		ships.index = new IntIndex(rows.size());
+		ships.makes = new int[rows.size()];
+		ships.models = new int[rows.size()];
+		ships.ages = new int[rows.size()];
+		ships.seats = new int[rows.size()];
+		for (ByteBuffer row : rows) {
+			int slot = ships.index.add(readInt(row));
+			ships.makes[slot] = loaded.makes.add(readText(row));
+			ships.models[slot] = loaded.models.add(readText(row));
+			ships.ages[slot] = readInt(row);
+			ships.seats[slot] = readInt(row);
+		}
+		loaded.bytesCopied += data.length;
+		return ships;
+	}
+
+	private static Captains decodeCaptains(byte[] data, Tables loaded) throws SQLException {
+		List<ByteBuffer> rows = rows(data, 3);
+		Captains captains = new Captains();
+		captains.index = new IntIndex(rows.size());
+		captains.names = new String[rows.size()];
+		captains.nationalities = new int[rows.size()];
+		for (ByteBuffer row : rows) {
+			int slot = captains.index.add(readInt(row));
+			captains.names[slot] = readText(row);
+			captains.nationalities[slot] = loaded.nationalities.add(readText(row));
+		}
+		loaded.bytesCopied += data.length;
+		return captains;
+	}
+
+	private static Technicians decodeTechnicians(byte[] data, Tables loaded) throws SQLException {
+		List<ByteBuffer> rows = rows(data, 2);
+		Technicians technicians = new Technicians();
+		technicians.index = new IntIndex(rows.size());
+		technicians.names = new String[rows.size()];
+		for (ByteBuffer row : rows) {
+			int slot = technicians.index.add(readInt(row));
+			technicians.names[slot] = readText(row);
+		}
+		loaded.bytesCopied += data.length;
+		return technicians;
+	}
+
+	private static Cruises decodeCruises(byte[] data, Tables loaded) throws SQLException {
+		List<ByteBuffer> rows = rows(data, 7);
+		Cruises cruises = new Cruises();
+		cruises.index = new IntIndex(rows.size());
+		cruises.costs = new int[rows.size()];
+		cruises.stops = new int[rows.size()];
+		cruises.departures = new int[rows.size()];
+		cruises.arrivals = new int[rows.size()];
+		cruises.departurePorts = new int[rows.size()];
+		cruises.arrivalPorts = new int[rows.size()];
+		cruises.ships = new int[rows.size()];
+		cruises.captains = new int[rows.size()];
+		Arrays.fill(cruises.ships, -1);
+		Arrays.fill(cruises.captains, -1);
+		for (ByteBuffer row : rows) {
+			int slot = cruises.index.add(readInt(row));
+			cruises.costs[slot] = readInt(row);
+			cruises.stops[slot] = readInt(row);
+			cruises.departures[slot] = readInt(row) + POSTGRES_EPOCH_DAY;
+			cruises.arrivals[slot] = readInt(row) + POSTGRES_EPOCH_DAY;
+			cruises.departurePorts[slot] = loaded.ports.add(readText(row));
+			cruises.arrivalPorts[slot] = loaded.ports.add(readText(row));
+		}
+		loaded.bytesCopied += data.length;
+		return cruises;
+	}
+
+	// rows of cruises copied after the Cruise copy are left out
+	private static void decodeCruiseInfo(byte[] data, Tables loaded) throws SQLException {
+		Cruises cruises = loaded.cruises;
+		for (ByteBuffer row : rows(data, 3)) {
+			int slot = cruises.index.get(readInt(row));
+			int ship = readInt(row);
+			int captain = readInt(row);
+			if (slot >= 0) {
+				cruises.ships[slot] = ship;
+				cruises.captains[slot] = captain;
+			}
+		}
+		loaded.bytesCopied += data.length;
+	}
+
+	/**
+	 * Splits the output of a binary COPY into its rows, each positioned at
+	 * its first field.
+	 */
+	static List<ByteBuffer> rows(byte[] data, int columns) throws SQLException {
+		ByteBuffer in = ByteBuffer.wrap(data);
+		if (data.length < SIGNATURE.length + 8 || !Arrays.equals(Arrays.copyOf(data, SIGNATURE.length), SIGNATURE)) {
+			throw new SQLException("Not the output of a binary COPY.");
+		}
+		in.position(SIGNATURE.length + 4);
+		int extension = in.getInt();
+		in.position(in.position() + extension);
+		List<ByteBuffer> rows = new ArrayList<ByteBuffer>();
+		while (true) {
+			short fields = in.getShort();
+			if (fields == -1) {
+				return rows;
+			}
+			if (fields != columns) {
+				throw new SQLException("Expected " + columns + " columns in the binary COPY, got " + fields + ".");
+			}
+			int begin = in.position();
+			ByteBuffer row = in.slice();
+			for (int i = 0; i < fields; i++) {
+				int length = in.getInt();
+				if (length > 0) {
+					in.position(in.position() + length);
+				}
+			}
+			row.limit(in.position() - begin);
+			rows.add(row);
+		}
+	}
+
+	// NULL reads as 0; the int columns copied are all NOT NULL
+	private static int readInt(ByteBuffer row) {
+		int length = row.getInt();
+		return length < 0 ? 0 : row.getInt();
+	}
+
+	private static String readText(ByteBuffer row) {
+		int length = row.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String text = new String(row.array(), row.arrayOffset() + row.position(), length, StandardCharsets.UTF_8);
+		row.position(row.position() + length);
+		return text;
+	}
+
+	public boolean isWarm() {
+		return tables != null;
+	}
+
+	/**
+	 * @return seats of the ship, -1 if it is not in the snapshot
+	 */
+	public int shipSeats(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.ships.index.get(id);
+		return slot < 0 ? -1 : t.ships.seats[slot];
+	}
+
+	/**
+	 * @return age of the ship, -1 if it is not in the snapshot
+	 */
+	public int shipAge(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.ships.index.get(id);
+		return slot < 0 ? -1 : t.ships.ages[slot];
+	}
+
+	/**
+	 * @return dictionary code of the ship's make, see makes(); -1 if it is not in the snapshot
+	 */
+	public int shipMakeCode(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.ships.index.get(id);
+		return slot < 0 ? -1 : t.ships.makes[slot];
+	}
+
+	/**
+	 * @return the ship's make, null if it is not in the snapshot
+	 */
+	public String shipMake(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.ships.index.get(id);
+		return slot < 0 ? null : t.makes.value(t.ships.makes[slot]);
+	}
+
+	/**
+	 * @return the ship's model, null if it is not in the snapshot
+	 */
+	public String shipModel(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.ships.index.get(id);
+		return slot < 0 ? null : t.models.value(t.ships.models[slot]);
+	}
+
+	/**
+	 * @return the captain's full name, null if not in the snapshot
+	 */
+	public String captainName(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.captains.index.get(id);
+		return slot < 0 ? null : t.captains.names[slot];
+	}
+
+	/**
+	 * @return the captain's nationality, null if not in the snapshot
+	 */
+	public String captainNationality(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.captains.index.get(id);
+		return slot < 0 ? null : t.nationalities.value(t.captains.nationalities[slot]);
+	}
+
+	/**
+	 * @return the technician's full name, null if not in the snapshot
+	 */
+	public String technicianName(int id) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.technicians.index.get(id);
+		return slot < 0 ? null : t.technicians.names[slot];
+	}
+
+	/**
+	 * @return cost of the cruise, -1 if it is not in the snapshot
+	 */
+	public int cruiseCost(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? -1 : t.cruises.costs[slot];
+	}
+
+	/**
+	 * @return stops of the cruise, -1 if it is not in the snapshot
+	 */
+	public int cruiseStops(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? -1 : t.cruises.stops[slot];
+	}
+
+	/**
+	 * @return the cruise's actual departure date, null if it is not in the snapshot
+	 */
+	public LocalDate cruiseDeparture(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? null : LocalDate.ofEpochDay(t.cruises.departures[slot]);
+	}
+
+	/**
+	 * @return the cruise's actual arrival date, null if it is not in the snapshot
+	 */
+	public LocalDate cruiseArrival(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? null : LocalDate.ofEpochDay(t.cruises.arrivals[slot]);
+	}
+
+	/**
+	 * @return dictionary code of the departure port, see ports(); -1 if the cruise is not in the snapshot
+	 */
+	public int cruiseDeparturePortCode(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? -1 : t.cruises.departurePorts[slot];
+	}
+
+	/**
+	 * @return dictionary code of the arrival port, see ports(); -1 if the cruise is not in the snapshot
+	 */
+	public int cruiseArrivalPortCode(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? -1 : t.cruises.arrivalPorts[slot];
+	}
+
+	/**
+	 * @return id of the cruise's ship, NO_SHIP or UNKNOWN
+	 */
+	public int cruiseShip(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? UNKNOWN : t.cruises.ships[slot];
+	}
+
+	/**
+	 * @return id of the cruise's captain, NO_SHIP or UNKNOWN
+	 */
+	public int cruiseCaptain(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		return slot < 0 ? UNKNOWN : t.cruises.captains[slot];
+	}
+
+	/**
+	 * @return seats of the cruise's ship, NO_SHIP or UNKNOWN
+	 */
+	public int cruiseSeats(int cnum) {
+		Tables t = tables;
+		int slot = t == null ? -1 : t.cruises.index.get(cnum);
+		if (slot < 0) {
+			return UNKNOWN;
+		}
+		int ship = t.cruises.ships[slot];
+		if (ship < 0) {
+			return NO_SHIP;
+		}
+		int shipSlot = t.ships.index.get(ship);
+		return shipSlot < 0 ? UNKNOWN : t.ships.seats[shipSlot];
+	}
+
+	public String cruiseDeparturePort(int cnum) {
+		Dictionary ports = ports();
+		return ports == null ? null : ports.value(cruiseDeparturePortCode(cnum));
+	}
+
+	public String cruiseArrivalPort(int cnum) {
+		Dictionary ports = ports();
+		return ports == null ? null : ports.value(cruiseArrivalPortCode(cnum));
+	}
+
+	/**
+	 * @return port codes of the current copy, null when it is not loaded
+	 */
+	public Dictionary ports() {
+		Tables t = tables;
+		return t == null ? null : t.ports;
+	}
+
+	/**
+	 * @return ship makes of the current copy, null when it is not loaded
+	 */
+	public Dictionary makes() {
+		Tables t = tables;
+		return t == null ? null : t.makes;
+	}
+
+	/**
+	 * @return ship models of the current copy, null when it is not loaded
+	 */
+	public Dictionary models() {
+		Tables t = tables;
+		return t == null ? null : t.models;
+	}
+
+	/**
+	 * @return rows and dictionary sizes, load time and memory of the current
+	 * copy, by name; empty when it is not loaded
+	 */
+	public Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		Tables t = tables;
+		if (t == null) {
+			return stats;
+		}
+		stats.put("ships", t.ships.index.size());
+		stats.put("captains", t.captains.index.size());
+		stats.put("technicians", t.technicians.index.size());
+		stats.put("cruises", t.cruises.index.size());
+		stats.put("makes", t.makes.size());
+		stats.put("models", t.models.size());
+		stats.put("nationalities", t.nationalities.size());
+		stats.put("ports", t.ports.size());
+		stats.put("load_ms", Math.round(t.loadMillis * 10) / 10.0);
+		stats.put("bytes_copied", t.bytesCopied);
+		stats.put("bytes_in_memory", estimatedBytes(t));
+		return stats;
+	}
+
+	// arrays, indexes, strings and dictionaries, with object headers
+	private static long estimatedBytes(Tables t) {
+		long bytes = t.makes.estimatedBytes() + t.models.estimatedBytes() + t.nationalities.estimatedBytes() + t.ports.estimatedBytes();
+		bytes += t.ships.index.estimatedBytes() + 4 * intArrayBytes(t.ships.makes.length);
+		bytes += t.captains.index.estimatedBytes() + intArrayBytes(t.captains.nationalities.length) + stringsBytes(t.captains.names);
+		bytes += t.technicians.index.estimatedBytes() + stringsBytes(t.technicians.names);
+		bytes += t.cruises.index.estimatedBytes() + 8 * intArrayBytes(t.cruises.costs.length);
+		return bytes;
+	}
+
+	private static long intArrayBytes(int length) {
+		return 16 + 4L * length;
+	}
+
+	private static long stringsBytes(String[] strings) {
+		long bytes = intArrayBytes(strings.length);
+		for (String value : strings) {
+			bytes += stringBytes(value);
+		}
+		return bytes;
+	}
+
+	// a String and its byte array; Latin-1 text takes a byte per character
+	private static long stringBytes(String value) {
+		return value == null ? 0 : 24 + 16 + value.length();
+	}
+
+	public String toString() {
+		Map<String, Object> stats = stats();
+		if (stats.isEmpty()) {
+			return "not loaded";
+		}
+		return String.format("%s ships, %s captains, %s technicians, %s cruises, %s ports in %s ms, %d KB in memory",
+			stats.get("ships"), stats.get("captains"), stats.get("technicians"), stats.get("cruises"), stats.get("ports"),
+			stats.get("load_ms"), (Long) stats.get("bytes_in_memory") / 1024);
+	}
+
+	/**
+	 * Reloads the snapshot every intervalSeconds on a daemon thread.
+	 */
+	public void startRefresh(final DBproject esql, long intervalSeconds) {
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "snapshot-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					warm(esql);
+				} catch (SQLException e) {
+					System.err.println(DBproject.ANSI_RED + "Reference snapshot not refreshed: " + e.getMessage() + DBproject.ANSI_RESET);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+}
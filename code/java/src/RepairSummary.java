@@ -0,0 +1,60 @@
+/*
+ * Repairs per ship summary
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Consistency check for ShipRepairCount, the repairs-per-ship counts that
+ * the trigger in sql/repairs.sql maintains for option 6. check() recounts
+ * Repairs from scratch and lists every ship whose stored count differs;
+ * rebuild() replaces the stored counts with the recount while writes to
+ * Repairs wait.
+ *
+ */
+
+public class RepairSummary {
+	private static final String RECOUNT =
+		"SELECT ship_id, COUNT(*) AS repairs FROM Repairs GROUP BY ship_id";
+
+	private static final String MISMATCHES =
+		"SELECT COALESCE(A.ship_id, S.ship_id) AS ship_id, COALESCE(A.repairs, 0) AS actual, COALESCE(S.repairs, 0) AS stored " +
+		"FROM (" + RECOUNT + ") A FULL OUTER JOIN ShipRepairCount S ON S.ship_id = A.ship_id " +
+		"WHERE A.repairs IS DISTINCT FROM S.repairs ORDER BY 1";
+
+	/**
+	 * @param esql the database connection
+	 * @return ship_id, actual and stored count of every ship counted wrong
+	 * @throws java.sql.SQLException when the check failed
+	 */
+	public static TypedResult check(DBproject esql) throws SQLException {
+		return esql.executeQueryAndReturnTyped(MISMATCHES);
+	}
+
+	/**
+	 * Recomputes every count in one transaction.
+	 *
+	 * @param esql the database connection
+	 * @return the number of ships counted
+	 * @throws java.sql.SQLException when the rebuild failed; the old counts stay then
+	 */
+	public static int rebuild(DBproject esql) throws SQLException {
+		esql.beginTransaction();
+		try {
+			// blocks inserts and deletes so none is counted twice or missed
+			esql.execute("LOCK TABLE Repairs IN SHARE MODE");
+			esql.executeUpdate("DELETE FROM ShipRepairCount");
+			int ships = esql.executeUpdate("INSERT INTO ShipRepairCount (ship_id, repairs) " + RECOUNT);
+			esql.commitTransaction();
+			return ships;
+		} catch (SQLException e) {
+			esql.rollbackTransaction();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Replica routing for reporting reads
+ * ===================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leases connections to streaming replicas (hot standbys) for reporting
+ * reads, one connection pool per replica. A health check asks every replica
+ * how far its replay is behind the primary; replicas that cannot be
+ * reached, are no longer in recovery, or are more than maxLagSeconds behind
+ * get no reads until a later check finds them fit again. Healthy replicas
+ * take turns, and when none is healthy borrow() returns null so the caller
+ * reads from the primary instead.
+ *
+ */
+
+public class ReplicaRouter {
+	// 0 while the replica is streaming and has replayed all it received;
+	// otherwise the age of the last replayed commit, -1 if there is none
+	private static final String LAG =
+		"SELECT pg_is_in_recovery(), CASE " +
+		"WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() " +
+		"AND EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming') THEN 0 " +
+		"ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp())::float8, -1) END";
+
+	/**
+	 * One replica and what the last health check found.
+	 */
+	public static class Replica {
+		private final ConnectionPool pool;
+		private volatile boolean up = false;
+		private volatile double lagSeconds = -1;
+		private volatile String problem = "not checked yet";
+		private final AtomicLong reads = new AtomicLong();
+
+		Replica(ConnectionPool pool) {
+			this.pool = pool;
+		}
+
+		public String url() {
+			return pool.url();
+		}
+
+		public boolean isUp() {
+			return up;
+		}
+
+		/**
+		 * @return seconds behind the primary at the last check, -1 if unknown
+		 */
+		public double lagSeconds() {
+			return lagSeconds;
+		}
+
+		/**
+		 * @return why the replica gets no reads, null while it is up
+		 */
+		public String problem() {
+			return problem;
+		}
+
+		/**
+		 * @return connections leased for reads so far
+		 */
+		public long reads() {
+			return reads.get();
+		}
+
+		void down(String why) {
+			up = false;
+			problem = why;
+		}
+	}
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final double maxLagSeconds;
+	private final AtomicInteger next = new AtomicInteger();
+	// reads that found no healthy replica and went to the primary
+	private final AtomicLong fallbacks = new AtomicLong();
+	private ScheduledExecutorService checker = null;
+
+	public ReplicaRouter(List<String> urls, String user, String passwd, int maxSize, long maxWaitMillis, long validateIdleMillis, int statementCacheSize, double maxLagSeconds) {
+		for (String url : urls) {
+			if (!url.trim().isEmpty()) {
+				replicas.add(new Replica(new ConnectionPool(url.trim(), user, passwd, maxSize, maxWaitMillis, validateIdleMillis, statementCacheSize)));
+			}
+		}
+		this.maxLagSeconds = maxLagSeconds;
+	}
+
+	/**
+	 * Checks every replica now, then every intervalSeconds on a daemon
+	 * thread.
+	 */
+	public void start(long intervalSeconds) {
+		check();
+		checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "replica-health-check");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				check();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Runs the health check on every replica. A replica whose pool is too
+	 * busy to lend a connection within maxWait keeps its current state.
+	 */
+	public void check() {
+		for (Replica replica : replicas) {
+			try {
+				ConnectionPool.PooledConnection pc = replica.pool.borrow();
+				try {
+					ResultSet rs = pc.statements().prepare(LAG).executeQuery();
+					try {
+						rs.next();
+						boolean standby = rs.getBoolean(1);
+						double lag = rs.getDouble(2);
+						replica.lagSeconds = lag;
+						if (!standby) {
+							replica.down("not in recovery, it may have been promoted");
+						} else if (lag < 0) {
+							replica.down("has not replayed anything yet");
+						} else if (lag > maxLagSeconds) {
+							replica.down(String.format("%.1f s behind, more than %.1f s allowed", lag, maxLagSeconds));
+						} else {
+							replica.problem = null;
+							replica.up = true;
+						}
+					} finally {
+						rs.close();
+					}
+				} finally {
+					replica.pool.release(pc);
+				}
+			} catch (SQLException e) {
+				// as in borrow(), a timeout only means the replica is busy; it stays as it was
+				if (!(e instanceof SQLTransientConnectionException)) {
+					replica.down(String.valueOf(e.getMessage()).replace('\n', ' '));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Leases a connection from the next healthy replica. A replica whose
+	 * connection cannot be opened is taken out of rotation until the next
+	 * successful health check; one whose pool is merely busy is skipped.
+	 *
+	 * @return a connection that must be handed back with release(), or null
+	 * to read from the primary
+	 */
+	public ConnectionPool.PooledConnection borrow() {
+		int count = replicas.size();
+		int first = next.getAndIncrement();
+		for (int i = 0; i < count; i++) {
+			Replica replica = replicas.get(Math.floorMod(first + i, count));
+			if (!replica.up) {
+				continue;
+			}
+			try {
+				ConnectionPool.PooledConnection pc = replica.pool.borrow();
+				replica.reads.incrementAndGet();
+				return pc;
+			} catch (SQLException e) {
+				// a timeout only means the replica is busy, anything else takes it out
+				if (!(e instanceof SQLTransientConnectionException)) {
+					replica.down(String.valueOf(e.getMessage()).replace('\n', ' '));
+				}
+			}
+		}
+		fallbacks.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Hands a replica connection back. A connection that broke while in use
+	 * takes its replica out of rotation until the next health check.
+	 *
+	 * @param pc the connection obtained from borrow()
+	 */
+	public void release(ConnectionPool.PooledConnection pc) {
+		for (Replica replica : replicas) {
+			if (replica.pool == pc.pool()) {
+				try {
+					if (pc.connection().isClosed()) {
+						replica.down("connection lost");
+					}
+				} catch (SQLException e) {
+					replica.down(String.valueOf(e.getMessage()).replace('\n', ' '));
+				}
+				break;
+			}
+		}
+		pc.pool().release(pc);
+	}
+
+	public List<Replica> replicas() {
+		return replicas;
+	}
+
+	public long fallbacks() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * Stops the health check and closes every replica connection.
+	 */
+	public void close() {
+		if (checker != null) {
+			checker.shutdownNow();
+			checker = null;
+		}
+		for (Replica replica : replicas) {
+			replica.pool.close();
+		}
+	}
+}
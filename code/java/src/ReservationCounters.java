@@ -0,0 +1,156 @@
+/*
+ * In-memory reservation counters
+ * ==============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Mirror of ReservationCount (see sql/reservation_counts.sql): the number
+ * of W, C and R reservations of every cruise, three ints per cruise in one
+ * array, so a count is an index lookup. The database table is the
+ * authority and is kept by trigger; this copy is loaded at startup, follows
+ * the writes made through SeatBooking, BatchBooking and WaitlistPromoter,
+ * and is reloaded every refresh interval to pick up writes from elsewhere.
+ *
+ * The copy is only for showing counts (option 7). Between reloads it lacks
+ * other clients' writes, and a write noted just after a load that already
+ * saw it is counted twice until the next one, so nothing that decides how
+ * to book reads it; read ReservationCount for that.
+ *
+ */
+
+public class ReservationCounters {
+	// count of the cruise is not in the mirror, ask the database
+	public static final int UNKNOWN = -1;
+
+	private static final String STATUSES = "WCR";
+
+	private static final String LOAD_CRUISES = "SELECT cnum FROM Cruise";
+	private static final String LOAD_COUNTS = "SELECT cid, status, reservations FROM ReservationCount";
+
+	/**
+	 * One loaded copy; the slot layout never changes after load.
+	 */
+	private static class Table {
+		final IntIndex index;
+		final AtomicIntegerArray counts;
+
+		Table(int size) {
+			index = new IntIndex(size);
+			counts = new AtomicIntegerArray(size * STATUSES.length());
+		}
+	}
+
+	private volatile Table table = null;
+	private ScheduledExecutorService refresher = null;
+
+	/**
+	 * Loads the counts of every cruise. Readers keep using the previous copy
+	 * until the new one is complete; writes noted while loading may be lost
+	 * until the next load.
+	 *
+	 * @param esql the database connection
+	 * @throws java.sql.SQLException when loading failed
+	 */
+	public void warm(DBproject esql) throws SQLException {
+		TypedResult cruises = esql.executeQueryAndReturnTyped(LOAD_CRUISES);
+		Table loaded = new Table(cruises.size());
+		for (int row = 0; row < cruises.size(); row++) {
+			loaded.index.add(cruises.getInt(row, 0));
+		}
+		TypedResult counts = esql.executeQueryAndReturnTyped(LOAD_COUNTS);
+		for (int row = 0; row < counts.size(); row++) {
+			int slot = loaded.index.get(counts.getInt(row, 0));
+			int status = STATUSES.indexOf(counts.getString(row, 1));
+			if (slot >= 0 && status >= 0) {
+				loaded.counts.set(slot * STATUSES.length() + status, counts.getInt(row, 2));
+			}
+		}
+		table = loaded;
+	}
+
+	public boolean isWarm() {
+		return table != null;
+	}
+
+	/**
+	 * @param cruiseNumber the cruise
+	 * @param status W, C or R
+	 * @return the number of reservations with that status, or UNKNOWN
+	 */
+	public int get(int cruiseNumber, String status) {
+		Table t = table;
+		int s = status.length() == 1 ? STATUSES.indexOf(status.charAt(0)) : -1;
+		if (t == null || s < 0) {
+			return UNKNOWN;
+		}
+		int slot = t.index.get(cruiseNumber);
+		return slot < 0 ? UNKNOWN : t.counts.get(slot * STATUSES.length() + s);
+	}
+
+	/**
+	 * Records reservations written and committed by this process.
+	 *
+	 * @param cruiseNumber the cruise written to
+	 * @param status W, C or R
+	 * @param delta reservations added, negative for removed
+	 */
+	public void add(int cruiseNumber, String status, int delta) {
+		Table t = table;
+		int s = status.length() == 1 ? STATUSES.indexOf(status.charAt(0)) : -1;
+		if (t == null || s < 0) {
+			return;
+		}
+		int slot = t.index.get(cruiseNumber);
+		if (slot >= 0) {
+			t.counts.addAndGet(slot * STATUSES.length() + s, delta);
+		}
+	}
+
+	/**
+	 * @return the number of cruises mirrored
+	 */
+	public int size() {
+		Table t = table;
+		return t == null ? 0 : t.index.size();
+	}
+
+	/**
+	 * Reloads the counts every intervalSeconds on a daemon thread.
+	 */
+	public void startRefresh(final DBproject esql, long intervalSeconds) {
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "reservation-counters-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					warm(esql);
+				} catch (SQLException e) {
+					System.err.println(DBproject.ANSI_RED + "Reservation counters not refreshed: " + e.getMessage() + DBproject.ANSI_RESET);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+}
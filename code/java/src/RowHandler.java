@@ -0,0 +1,22 @@
+/*
+ * Row callback for streamed queries
+ * =================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback used by DBproject.executeQueryAndStream. It is called once per
+ * row with the ResultSet positioned on that row; the row is gone once the
+ * callback returns, so nothing has to be kept in memory.
+ *
+ */
+
+public interface RowHandler {
+	void row(ResultSet rs) throws SQLException;
+}
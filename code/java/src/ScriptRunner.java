@@ -0,0 +1,452 @@
+/*
+ * Non-interactive script mode
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class runs the menu operations without prompts, one operation per
+ * line, and writes one JSON object per line of output. Every statement of
+ * a script runs over the same database session.
+ *
+ * Operations (the menu number works as well as the name):
+ *   add-ship <id> <make> <model> <age> <seats>                         (1)
+ *   add-captain <id> <fullname> <nationality>                          (2)
+ *   add-cruise <cnum> <cost> <num_sold> <num_stops> <departure>
+ *              <arrival> <arrival port> <departure port>               (3)
+ *   book <customer id> <cruise number>                                 (4)
+ *   seats <cruise number> <yyyy-mm-dd>                                 (5)
+ *   repairs                                                            (6)
+ *   status-count <cruise number> <W|C|R>                               (7)
+ *   add-customer <first> <last> <F|M> <dob yyyy-mm-dd> <address>
+ *                <zip> <phone>                                         (8)
+ *   under-cost <cost> [page size [after]]                              (9)
+ *   cost-range <min cost> <max cost> [page size [after]]
+ *   batch-book <ccid,cid file>                                         (10)
+ *   departures <from yyyy-mm-dd> <to yyyy-mm-dd> [free seats]          (11)
+ *   promote <cruise number>
+ *   sweep-waitlist [cruises per transaction]
+ *   check-repairs [fix]
+ *   replicas
+ *   export <table|select> <file> [csv|jsonl]
+ *   snapshot [refresh]
+ *
+ * With write-behind enabled, consecutive add operations are queued and
+ * their result lines printed once their rows are committed, before the
+ * output of the next other operation.
+ *
+ * Arguments are separated by blanks; use double quotes for arguments with
+ * blanks in them, e.g. departure dates "2014-05-01 16:45". Lines starting
+ * with # are comments.
+ *
+ */
+
+public class ScriptRunner {
+	private static final List<String> ADD_OPERATIONS = Arrays.asList("1", "add-ship", "2", "add-captain", "3", "add-cruise", "8", "add-customer");
+
+	/**
+	 * An add operation whose row may still be in the write-behind queue.
+	 */
+	private static class QueuedWrite {
+		final int lineNumber;
+		final String op;
+		final CompletableFuture<?> row;
+		// result field that gets the future's value, null for none
+		final String field;
+
+		QueuedWrite(int lineNumber, String op, CompletableFuture<?> row, String field) {
+			this.lineNumber = lineNumber;
+			this.op = op;
+			this.row = row;
+			this.field = field;
+		}
+	}
+
+	private final DBproject esql;
+	private final PrintStream out;
+	private final List<QueuedWrite> writes = new ArrayList<QueuedWrite>();
+	private int errors = 0;
+
+	public ScriptRunner(DBproject esql, PrintStream out) {
+		this.esql = esql;
+		this.out = out;
+	}
+
+	/**
+	 * Runs the operations given on the command line after dbname, port and
+	 * user: either --script <file|-> or a single operation with its arguments.
+	 *
+	 * @param esql the database connection
+	 * @param args the remaining command line arguments
+	 * @return the number of operations that failed
+	 * @throws java.lang.Exception when the script cannot be read
+	 */
+	public static int runCommandLine(DBproject esql, String[] args) throws Exception {
+		ScriptRunner runner = new ScriptRunner(esql, System.out);
+		// one session for the whole run
+		esql.pinConnection();
+		try {
+			if (args[0].equals("--script")) {
+				if (args.length != 2) {
+					throw new Exception("Usage: --script <file|->");
+				}
+				BufferedReader script = args[1].equals("-") ? DBproject.in : new BufferedReader(new FileReader(args[1]));
+				runner.run(script);
+			} else {
+				List<String> words = new ArrayList<String>();
+				for (String arg : args) {
+					words.add(arg);
+				}
+				runner.runOperation(0, words);
+				runner.awaitWrites();
+			}
+		} finally {
+			esql.unpinConnection();
+			System.out.flush();
+		}
+		return runner.errors;
+	}
+
+	/**
+	 * Runs every line of the script.
+	 *
+	 * @param script one operation per line
+	 * @throws java.io.IOException when the script cannot be read
+	 */
+	public void run(BufferedReader script) throws IOException {
+		String line;
+		int lineNumber = 0;
+		while ((line = script.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().length() == 0 || line.trim().startsWith("#")) {
+				continue;
+			}
+			List<String> words;
+			try {
+				words = split(line);
+			} catch (Exception e) {
+				fail(lineNumber, null, e);
+				continue;
+			}
+			runOperation(lineNumber, words);
+		}
+		awaitWrites();
+	}
+
+	public int errors() {
+		return errors;
+	}
+
+	/**
+	 * Runs one operation and prints its JSON result.
+	 *
+	 * @param lineNumber line of the script, 0 on the command line
+	 * @param words the operation followed by its arguments
+	 */
+	public void runOperation(final int lineNumber, List<String> words) {
+		final String op = words.get(0);
+		try {
+			if (!ADD_OPERATIONS.contains(op)) {
+				// reads see the queued rows, and results keep script order
+				awaitWrites();
+			}
+			Json result = new Json();
+			switch (op) {
+				case "1":
+				case "add-ship":
+					args(words, 5);
+					queued(lineNumber, op, DBproject.addShip(esql, integer(words, 1), words.get(2), words.get(3), integer(words, 4), integer(words, 5)), null);
+					return;
+				case "2":
+				case "add-captain":
+					args(words, 3);
+					queued(lineNumber, op, DBproject.addCaptain(esql, integer(words, 1), words.get(2), words.get(3)), null);
+					return;
+				case "3":
+				case "add-cruise":
+					args(words, 8);
+					queued(lineNumber, op, DBproject.addCruise(esql, integer(words, 1), integer(words, 2), integer(words, 3), integer(words, 4),
+						words.get(5), words.get(6), words.get(7), words.get(8)), null);
+					return;
+				case "4":
+				case "book": {
+					args(words, 2);
+					SeatBooking.Result booking = DBproject.bookCruise(esql, integer(words, 1), integer(words, 2));
+					result.put("outcome", booking.outcome.name()).put("status", booking.status()).put("rnum", booking.rnum < 0 ? null : booking.rnum);
+					break;
+				}
+				case "5":
+				case "seats": {
+					args(words, 2);
+					int available = DBproject.availableSeats(esql, integer(words, 1), LocalDate.parse(words.get(2)));
+					result.put("found", available >= 0).put("available", available < 0 ? null : available);
+					break;
+				}
+				case "6":
+				case "repairs":
+					args(words, 0);
+					result.put("rows", DBproject.repairsPerShip(esql, rowPrinter(lineNumber, op)));
+					break;
+				case "7":
+				case "status-count":
+					args(words, 2);
+					result.put("count", DBproject.passengersWithStatus(esql, integer(words, 1), words.get(2).toUpperCase()));
+					break;
+				case "8":
+				case "add-customer":
+					args(words, 7);
+					queued(lineNumber, op, DBproject.addCustomer(esql, words.get(1), words.get(2), words.get(3).toUpperCase(), LocalDate.parse(words.get(4)),
+						words.get(5), words.get(6), words.get(7)), "id");
+					return;
+				case "9":
+				case "under-cost": {
+					if (words.size() < 2 || words.size() > 4) {
+						throw new Exception(op + " takes 1 to 3 argument(s), got " + (words.size() - 1));
+					}
+					PriceIndex.Page page = DBproject.cruisesUnderCost(esql, integer(words, 1),
+						words.size() > 3 ? words.get(3) : null, words.size() > 2 ? integer(words, 2) : Integer.MAX_VALUE);
+					printPage(lineNumber, op, page, result);
+					break;
+				}
+				case "cost-range": {
+					if (words.size() < 3 || words.size() > 5) {
+						throw new Exception(op + " takes 2 to 4 argument(s), got " + (words.size() - 1));
+					}
+					PriceIndex.Page page = DBproject.cruisesBetweenCost(esql, integer(words, 1), integer(words, 2),
+						words.size() > 4 ? words.get(4) : null, words.size() > 3 ? integer(words, 3) : Integer.MAX_VALUE);
+					printPage(lineNumber, op, page, result);
+					break;
+				}
+				case "10":
+				case "batch-book": {
+					args(words, 1);
+					StringWriter outcomes = new StringWriter();
+					StringWriter report = new StringWriter();
+					BufferedReader input = new BufferedReader(new FileReader(words.get(1)));
+					BatchBooking.Summary summary;
+					try {
+						summary = BatchBooking.run(esql, input, new PrintWriter(outcomes), new PrintWriter(report));
+					} finally {
+						input.close();
+					}
+					result.put("rows", summary.rows).put("reserved", summary.reserved).put("waitlisted", summary.waitlisted)
+						.put("rejected", summary.rejected).put("seconds", summary.seconds).put("outcomes", outcomes.toString());
+					break;
+				}
+				case "11":
+				case "departures": {
+					if (words.size() < 3 || words.size() > 4) {
+						throw new Exception(op + " takes 2 to 3 argument(s), got " + (words.size() - 1));
+					}
+					SeatInventory.Departures found = DBproject.departuresWithSeats(esql, LocalDate.parse(words.get(1)), LocalDate.parse(words.get(2)),
+						words.size() > 3 ? integer(words, 3) : 1);
+					for (int i = 0; i < found.size(); i++) {
+						out.println(new Json().put("line", lineNumber).put("op", op).put("row", new Json()
+							.put("cnum", found.cruise(i)).put("departure_time", found.departure(i).toString()).put("available", found.available(i))));
+					}
+					result.put("rows", found.size());
+					break;
+				}
+				case "promote":
+					args(words, 1);
+					result.put("promoted", WaitlistPromoter.promote(esql, integer(words, 1)));
+					break;
+				case "sweep-waitlist": {
+					WaitlistPromoter.Summary summary = WaitlistPromoter.sweep(esql, words.size() > 1 ? integer(words, 1) : 500);
+					result.put("cruises", summary.cruises).put("promoted", summary.promoted).put("seconds", summary.seconds);
+					break;
+				}
+				case "check-repairs": {
+					if (words.size() > 2 || (words.size() == 2 && !words.get(1).equals("fix"))) {
+						throw new Exception("Usage: check-repairs [fix]");
+					}
+					TypedResult mismatches = RepairSummary.check(esql);
+					for (int row = 0; row < mismatches.size(); row++) {
+						out.println(new Json().put("line", lineNumber).put("op", op).put("row", new Json()
+							.put("ship_id", mismatches.getInt(row, 0)).put("actual", mismatches.getLong(row, 1)).put("stored", mismatches.getLong(row, 2))));
+					}
+					result.put("consistent", mismatches.size() == 0).put("mismatches", mismatches.size());
+					if (words.size() == 2 && mismatches.size() > 0) {
+						result.put("rebuilt", RepairSummary.rebuild(esql));
+					}
+					break;
+				}
+				case "replicas": {
+					args(words, 0);
+					ReplicaRouter router = esql.replicas();
+					if (router == null) {
+						throw new Exception("No replicas configured, see cruise.replica.urls.");
+					}
+					// fresh health, not the last scheduled check
+					router.check();
+					for (ReplicaRouter.Replica replica : router.replicas()) {
+						out.println(new Json().put("line", lineNumber).put("op", op).put("row", new Json()
+							.put("url", replica.url()).put("up", replica.isUp()).put("lag_seconds", replica.lagSeconds())
+							.put("problem", replica.problem()).put("reads", replica.reads())));
+					}
+					result.put("replicas", router.replicas().size()).put("primary_fallbacks", router.fallbacks());
+					break;
+				}
+				case "export": {
+					if (words.size() < 3 || words.size() > 4) {
+						throw new Exception(op + " takes 2 to 3 argument(s), got " + (words.size() - 1));
+					}
+					File file = new File(words.get(2));
+					Exporter.Summary summary = Exporter.export(esql, words.get(1), file,
+						words.size() > 3 ? Exporter.Format.valueOf(words.get(3).toUpperCase()) : Exporter.formatOf(file), false);
+					result.put("rows", summary.rows).put("bytes", summary.bytes).put("seconds", summary.seconds)
+						.put("rows_per_sec", summary.rowsPerSecond());
+					break;
+				}
+				case "snapshot": {
+					if (words.size() > 2 || (words.size() == 2 && !words.get(1).equals("refresh"))) {
+						throw new Exception("Usage: snapshot [refresh]");
+					}
+					if (words.size() == 2 || !esql.snapshot().isWarm()) {
+						esql.snapshot().warm(esql);
+					}
+					for (Map.Entry<String, Object> stat : esql.snapshot().stats().entrySet()) {
+						result.put(stat.getKey(), stat.getValue());
+					}
+					break;
+				}
+				default:
+					throw new Exception("Unknown operation: " + op);
+			}
+			out.println(new Json().put("line", lineNumber).put("op", op).put("ok", true).put("result", result));
+		} catch (Exception e) {
+			fail(lineNumber, op, e);
+		}
+	}
+
+	// prints every row of a listing as its own JSON line
+	private RowHandler rowPrinter(final int lineNumber, final String op) {
+		return new RowHandler() {
+			public void row(ResultSet rs) throws SQLException {
+				ResultSetMetaData rsmd = rs.getMetaData();
+				Json row = new Json();
+				for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+					Object value = rs.getObject(i);
+					row.put(rsmd.getColumnName(i), value instanceof Number ? value : (value == null ? null : value.toString()));
+				}
+				out.println(new Json().put("line", lineNumber).put("op", op).put("row", row));
+			}
+		};
+	}
+
+	// prints the departures of a cost page as row lines, and its totals into result
+	private void printPage(int lineNumber, String op, PriceIndex.Page page, Json result) {
+		for (int i = 0; i < page.size(); i++) {
+			out.println(new Json().put("line", lineNumber).put("op", op).put("row", new Json()
+				.put("cnum", page.cruise(i)).put("departure_time", page.departure(i).toString()).put("cost", page.cost(i))));
+		}
+		result.put("rows", page.size()).put("total", page.total).put("next", page.next());
+	}
+
+	// prints the add's result when its row is committed, right away unless write-behind queued it
+	private void queued(int lineNumber, String op, CompletableFuture<?> row, String field) {
+		writes.add(new QueuedWrite(lineNumber, op, row, field));
+		if (row.isDone()) {
+			awaitWrites();
+		}
+	}
+
+	/**
+	 * Waits for the rows queued by earlier add operations and prints their
+	 * results in script order.
+	 */
+	public void awaitWrites() {
+		while (!writes.isEmpty()) {
+			QueuedWrite write = writes.remove(0);
+			try {
+				Object value = DBproject.await(write.row);
+				Json result = new Json();
+				if (write.field != null) {
+					result.put(write.field, value);
+				}
+				out.println(new Json().put("line", write.lineNumber).put("op", write.op).put("ok", true).put("result", result));
+			} catch (Exception e) {
+				printFailure(write.lineNumber, write.op, e);
+			}
+		}
+	}
+
+	private void fail(int lineNumber, String op, Exception e) {
+		awaitWrites();
+		printFailure(lineNumber, op, e);
+	}
+
+	private void printFailure(int lineNumber, String op, Exception e) {
+		errors++;
+		out.println(new Json().put("line", lineNumber).put("op", op).put("ok", false).put("error", String.valueOf(e.getMessage())));
+	}
+
+	private static void args(List<String> words, int count) throws Exception {
+		if (words.size() - 1 != count) {
+			throw new Exception(words.get(0) + " takes " + count + " argument(s), got " + (words.size() - 1));
+		}
+	}
+
+	private static int integer(List<String> words, int i) throws Exception {
+		try {
+			return Integer.parseInt(words.get(i));
+		} catch (NumberFormatException e) {
+			throw new Exception("Argument " + i + " of " + words.get(0) + " must be an integer: " + words.get(i));
+		}
+	}
+
+	/**
+	 * Splits a line into blank separated words. Double quotes group words,
+	 * and a backslash escapes the next character.
+	 */
+	static List<String> split(String line) throws Exception {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = null;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length()) {
+				if (word == null) word = new StringBuilder();
+				word.append(line.charAt(++i));
+			} else if (c == '"') {
+				if (word == null) word = new StringBuilder();
+				quoted = !quoted;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (word != null) {
+					words.add(word.toString());
+					word = null;
+				}
+			} else {
+				if (word == null) word = new StringBuilder();
+				word.append(c);
+			}
+		}
+		if (quoted) {
+			throw new Exception("Unterminated quote");
+		}
+		if (word != null) {
+			words.add(word.toString());
+		}
+		return words;
+	}
+}
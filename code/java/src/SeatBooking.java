@@ -0,0 +1,139 @@
+/*
+ * Atomic seat booking
+ * ===================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * This class books a customer on a cruise without a read-then-write race.
+ * A seat is taken by a conditional increment of Cruise.num_sold that only
+ * succeeds while num_sold is below the ship's seat count, and the
+ * reservation number comes from a block reserved on reservation_rnum_seq
+ * (see IdAllocator and sql/id_blocks.sql).
+ * Concurrent bookers only serialize on the cruise row for the duration of
+ * one statement. The resulting sold count is written through to the
+ * connection's SeatInventory. While a cruise has W reservations a new one
+ * gets no seat of its own; it joins the waitlist and the cruise's
+ * WaitlistPromoter pass confirms the waitlist in rnum order, so free seats
+ * go to earlier reservations first. A customer already on the waitlist is
+ * confirmed in turn by the same pass.
+ *
+ */
+
+public class SeatBooking {
+	public enum Outcome {
+		RESERVED,          // new reservation with a seat (R)
+		WAITLISTED,        // new reservation on the waitlist (W)
+		CONFIRMED,         // new reservation confirmed after the waitlist ahead of it (C)
+		PROMOTED,          // existing waitlisted reservation confirmed (C)
+		STILL_WAITLISTED,  // existing waitlisted reservation, cruise still full
+		NOT_FOUND          // no such cruise with a ship assigned
+	}
+
+	public static class Result {
+		public final Outcome outcome;
+		public final int rnum;
+
+		Result(Outcome outcome, int rnum) {
+			this.outcome = outcome;
+			this.rnum = rnum;
+		}
+
+		public String status() {
+			switch (outcome) {
+				case RESERVED:
+					return "R";
+				case PROMOTED:
+				case CONFIRMED:
+					return "C";
+				case NOT_FOUND:
+					return null;
+				default:
+					return "W";
+			}
+		}
+	}
+
+	// takes one seat if the ship still has one and nobody is waiting for it, one updated row means success
+	private static final String TAKE_SEAT =
+		"UPDATE Cruise C SET num_sold = C.num_sold + 1 " +
+		"FROM CruiseInfo CI, Ship S " +
+		"WHERE C.cnum = ? AND CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.num_sold < S.seats " +
+		"AND NOT EXISTS (SELECT 1 FROM Reservation W WHERE W.cid = C.cnum AND W.status = 'W')";
+
+	private static final String BOOK =
+		"WITH seat AS (" + TAKE_SEAT + " RETURNING C.num_sold) " +
+		"INSERT INTO Reservation (rnum, ccid, cid, status) " +
+		"SELECT ?, ?, C.cnum, CASE WHEN EXISTS (SELECT 1 FROM seat) THEN 'R' ELSE 'W' END " +
+		"FROM Cruise C WHERE C.cnum = ? AND EXISTS (SELECT 1 FROM CruiseInfo CI WHERE CI.cruise_id = C.cnum) " +
+		"RETURNING rnum, status, (SELECT num_sold FROM seat)";
+
+	private static final String FIND_WAITLISTED =
+		"SELECT rnum FROM Reservation WHERE ccid = ? AND cid = ? AND status = 'W' ORDER BY rnum LIMIT 1";
+
+	/**
+	 * Books the customer on the cruise. A customer who is already waitlisted
+	 * on the cruise is confirmed once every earlier waitlisted reservation
+	 * has a seat and one is still free, otherwise a new reservation is made
+	 * with status R, or W when the ship is full or others are waiting; a new
+	 * W reservation is confirmed (C) at once if the waitlist ahead of it
+	 * fits in the free seats.
+	 *
+	 * @param esql the database connection
+	 * @param customerID the customer's id
+	 * @param cruiseNumber the cruise number
+	 * @return what happened to the booking
+	 * @throws java.sql.SQLException when the booking failed, e.g. unknown customer
+	 */
+	public static Result book(DBproject esql, int customerID, int cruiseNumber) throws SQLException {
+		// the partial index on W reservations keeps this cheap, and unlike the
+		// counters mirror it sees waitlistings made a moment ago by other clients
+		TypedResult waiting = esql.executeQueryAndReturnTyped(FIND_WAITLISTED, customerID, cruiseNumber);
+		if (waiting.size() > 0) {
+			Result promoted = promote(esql, waiting.getInt(0, 0), cruiseNumber);
+			if (promoted != null) {
+				return promoted;
+			}
+		}
+
+		// numbers that end up unused (unknown cruise) only leave a gap
+		int rnum = esql.reservationIds().nextInt();
+		TypedResult result = esql.executeQueryAndReturnTyped(BOOK, cruiseNumber, rnum, customerID, cruiseNumber);
+		if (result.size() == 0) {
+			return new Result(Outcome.NOT_FOUND, -1);
+		}
+		boolean reserved = "R".equals(result.getString(0, 1));
+		esql.counters().add(cruiseNumber, reserved ? "R" : "W", 1);
+		if (reserved) {
+			esql.inventory().setSold(cruiseNumber, result.getInt(0, 2));
+			return new Result(Outcome.RESERVED, result.getInt(0, 0));
+		}
+		// full, or free seats the earlier waitlist gets first; serve it in rnum order
+		Result promoted = promote(esql, result.getInt(0, 0), cruiseNumber);
+		if (promoted != null && promoted.outcome == Outcome.PROMOTED) {
+			return new Result(Outcome.CONFIRMED, promoted.rnum);
+		}
+		return new Result(Outcome.WAITLISTED, result.getInt(0, 0));
+	}
+
+	// promotes the cruise's waitlist in rnum order and reports where the reservation ended up, null if it is gone
+	private static Result promote(DBproject esql, int rnum, int cruiseNumber) throws SQLException {
+		WaitlistPromoter.promote(esql, cruiseNumber);
+		TypedResult status = esql.executeQueryAndReturnTyped("SELECT status FROM Reservation WHERE rnum = ?", rnum);
+		String now = status.size() == 0 ? null : status.getString(0, 0);
+		if ("C".equals(now)) {
+			return new Result(Outcome.PROMOTED, rnum);
+		}
+		if ("W".equals(now)) {
+			// every seat went to earlier reservations
+			esql.inventory().setFull(cruiseNumber);
+			return new Result(Outcome.STILL_WAITLISTED, rnum);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * In-memory seat inventory
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class caches, for every cruise with a ship assigned, the ship's seat
+ * count, the number of seats sold and the cruise's scheduled departure days.
+ * Availability checks (options 4 and 5) are answered from memory; bookings
+ * still go to Postgres, which stays the authority, and the sold count that
+ * the booking statement returns is written back here. Sold counts are
+ * atomic, so bookings on different cruises do not contend and readers take
+ * no lock. Two bookings can report their counts out of commit order, so a
+ * count only ever moves up here; bookings by other clients, cancellations
+ * and new departures are picked up by the periodic reload (startRefresh).
+ *
+ * The same departures are also kept as a calendar: bucketed by day, each
+ * bucket holding its cruises in cruise number order, so "departing between
+ * two days with at least N free seats" reads only the buckets in the range.
+ * A bucket whose largest ship is too small is skipped without reading it.
+ * Bookings move the sold counts the calendar reads, so it needs no updates
+ * of its own.
+ *
+ */
+
+public class SeatInventory {
+	// cruise is not in the cache, ask the database
+	public static final int UNKNOWN = -2;
+	// cruise is cached but has no departure on the requested day
+	public static final int NO_DEPARTURE = -1;
+
+	private static final String LOAD_SEATS =
+		"SELECT C.cnum, S.seats, C.num_sold FROM CruiseInfo CI, Cruise C, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id";
+	private static final String LOAD_DEPARTURES =
+		"SELECT cruiseNum, departure_time - DATE '1970-01-01' FROM Schedule ORDER BY cruiseNum, departure_time";
+
+	/**
+	 * Departures found by a calendar search, in day and cruise number order.
+	 */
+	public static class Departures {
+		private int size = 0;
+		private int[] cruises;
+		private int[] days;
+		private int[] available;
+
+		Departures(int capacity) {
+			cruises = new int[Math.max(capacity, 16)];
+			days = new int[cruises.length];
+			available = new int[cruises.length];
+		}
+
+		void add(int cruise, int day, int free) {
+			if (size == cruises.length) {
+				cruises = Arrays.copyOf(cruises, size * 2);
+				days = Arrays.copyOf(days, size * 2);
+				available = Arrays.copyOf(available, size * 2);
+			}
+			cruises[size] = cruise;
+			days[size] = day;
+			available[size] = free;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int cruise(int i) {
+			return cruises[i];
+		}
+
+		public LocalDate departure(int i) {
+			return LocalDate.ofEpochDay(days[i]);
+		}
+
+		/**
+		 * @return the free seats when the search ran
+		 */
+		public int available(int i) {
+			return available[i];
+		}
+	}
+
+	/**
+	 * One loaded copy of the inventory. The slot layout never changes after
+	 * load; only the sold counts move.
+	 */
+	private static class Table {
+		final IntIndex index;
+		final int[] cruises;
+		final int[] capacity;
+		final AtomicIntegerArray sold;
+		// sorted epoch days of each cruise's departures
+		final int[][] departures;
+
+		// the calendar: bucket d is day firstDay + d, its departures are
+		// calendarSlots[dayStart[d]] up to calendarSlots[dayStart[d + 1]]
+		int firstDay = 0;
+		int[] dayStart = new int[1];
+		int[] calendarSlots = new int[0];
+		// seats of the largest ship departing that day
+		int[] dayMaxCapacity = new int[0];
+
+		Table(int size) {
+			index = new IntIndex(size);
+			cruises = new int[size];
+			capacity = new int[size];
+			sold = new AtomicIntegerArray(size);
+			departures = new int[size][];
+		}
+
+		// counting sort of every departure by day; cruises are visited in
+		// number order, so each bucket comes out in cruise number order
+		void buildCalendar(int[] slotsByCruise) {
+			int first = Integer.MAX_VALUE;
+			int last = Integer.MIN_VALUE;
+			int count = 0;
+			for (int slot : slotsByCruise) {
+				int[] days = departures[slot];
+				first = Math.min(first, days[0]);
+				last = Math.max(last, days[days.length - 1]);
+				count += days.length;
+			}
+			if (count == 0) {
+				return;
+			}
+			int buckets = last - first + 1;
+			int[] start = new int[buckets + 1];
+			int[] maxCapacity = new int[buckets];
+			for (int slot : slotsByCruise) {
+				for (int day : departures[slot]) {
+					start[day - first + 1]++;
+					maxCapacity[day - first] = Math.max(maxCapacity[day - first], capacity[slot]);
+				}
+			}
+			for (int d = 0; d < buckets; d++) {
+				start[d + 1] += start[d];
+			}
+			int[] slots = new int[count];
+			int[] next = Arrays.copyOf(start, buckets);
+			for (int slot : slotsByCruise) {
+				for (int day : departures[slot]) {
+					slots[next[day - first]++] = slot;
+				}
+			}
+			firstDay = first;
+			dayStart = start;
+			calendarSlots = slots;
+			dayMaxCapacity = maxCapacity;
+		}
+	}
+
+	private volatile Table table = null;
+	private ScheduledExecutorService refresher = null;
+
+	/**
+	 * Loads seat counts and departures for every cruise. Readers keep using
+	 * the previous copy until the new one is complete.
+	 *
+	 * @param esql the database connection
+	 * @throws java.sql.SQLException when loading failed
+	 */
+	public void warm(DBproject esql) throws SQLException {
+		TypedResult seats = esql.executeQueryAndReturnTyped(LOAD_SEATS);
+		Table loaded = new Table(seats.size());
+		for (int row = 0; row < seats.size(); row++) {
+			int slot = loaded.index.add(seats.getInt(row, 0));
+			loaded.cruises[slot] = seats.getInt(row, 0);
+			loaded.capacity[slot] = seats.getInt(row, 1);
+			loaded.sold.set(slot, seats.getInt(row, 2));
+		}
+
+		TypedResult schedule = esql.executeQueryAndReturnTyped(LOAD_DEPARTURES);
+		int[] scheduled = new int[loaded.index.size()];
+		int cruiseCount = 0;
+		int row = 0;
+		while (row < schedule.size()) {
+			// rows arrive grouped by cruise and sorted by day
+			int cnum = schedule.getInt(row, 0);
+			int end = row;
+			while (end < schedule.size() && schedule.getInt(end, 0) == cnum) {
+				end++;
+			}
+			int slot = loaded.index.get(cnum);
+			if (slot >= 0) {
+				int[] days = new int[end - row];
+				for (int i = row; i < end; i++) {
+					days[i - row] = schedule.getInt(i, 1);
+				}
+				loaded.departures[slot] = days;
+				scheduled[cruiseCount++] = slot;
+			}
+			row = end;
+		}
+		loaded.buildCalendar(Arrays.copyOf(scheduled, cruiseCount));
+		table = loaded;
+	}
+
+	public boolean isWarm() {
+		return table != null;
+	}
+
+	/**
+	 * @return free seats on the cruise, or UNKNOWN
+	 */
+	public int available(int cruiseNumber) {
+		Table t = table;
+		if (t == null) {
+			return UNKNOWN;
+		}
+		int slot = t.index.get(cruiseNumber);
+		if (slot < 0) {
+			return UNKNOWN;
+		}
+		return t.capacity[slot] - t.sold.get(slot);
+	}
+
+	/**
+	 * @return free seats on the cruise departing that day, NO_DEPARTURE or UNKNOWN
+	 */
+	public int available(int cruiseNumber, LocalDate departure) {
+		Table t = table;
+		if (t == null) {
+			return UNKNOWN;
+		}
+		int slot = t.index.get(cruiseNumber);
+		if (slot < 0) {
+			return UNKNOWN;
+		}
+		int[] days = t.departures[slot];
+		if (days == null || Arrays.binarySearch(days, (int) departure.toEpochDay()) < 0) {
+			return NO_DEPARTURE;
+		}
+		return t.capacity[slot] - t.sold.get(slot);
+	}
+
+	/**
+	 * Finds every departure between two days, both included, with at least
+	 * minFree free seats. Cruises without a ship are not in the calendar.
+	 *
+	 * @param from first departure day
+	 * @param to last departure day
+	 * @param minFree fewest free seats a departure must have
+	 * @return the departures, null when the inventory is not loaded
+	 */
+	public Departures departing(LocalDate from, LocalDate to, int minFree) {
+		Table t = table;
+		if (t == null) {
+			return null;
+		}
+		int buckets = t.dayMaxCapacity.length;
+		long lo = Math.max(0, from.toEpochDay() - t.firstDay);
+		long hi = Math.min(buckets, to.toEpochDay() - t.firstDay + 1);
+		Departures found = new Departures(lo < hi ? t.dayStart[(int) hi] - t.dayStart[(int) lo] : 0);
+		for (int d = (int) lo; d < hi; d++) {
+			if (t.dayMaxCapacity[d] < minFree) {
+				continue;
+			}
+			for (int i = t.dayStart[d]; i < t.dayStart[d + 1]; i++) {
+				int slot = t.calendarSlots[i];
+				int free = t.capacity[slot] - t.sold.get(slot);
+				if (free >= minFree) {
+					found.add(t.cruises[slot], t.firstDay + d, free);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Records the sold count the database reported after a write, unless a
+	 * later write already reported a higher one.
+	 *
+	 * @param cruiseNumber the cruise written to
+	 * @param sold Cruise.num_sold as returned by the statement
+	 */
+	public void setSold(int cruiseNumber, int sold) {
+		Table t = table;
+		if (t == null) {
+			return;
+		}
+		int slot = t.index.get(cruiseNumber);
+		if (slot < 0) {
+			return;
+		}
+		t.sold.accumulateAndGet(slot, sold, Math::max);
+	}
+
+	/**
+	 * Records that a booking found the cruise full.
+	 *
+	 * @param cruiseNumber the cruise that had no free seat
+	 */
+	public void setFull(int cruiseNumber) {
+		Table t = table;
+		if (t == null) {
+			return;
+		}
+		int slot = t.index.get(cruiseNumber);
+		if (slot < 0) {
+			return;
+		}
+		int sold = t.sold.get(slot);
+		while (sold < t.capacity[slot] && !t.sold.compareAndSet(slot, sold, t.capacity[slot])) {
+			sold = t.sold.get(slot);
+		}
+	}
+
+	/**
+	 * @return the number of cruises cached
+	 */
+	public int size() {
+		Table t = table;
+		return t == null ? 0 : t.index.size();
+	}
+
+	/**
+	 * Reloads the inventory every intervalSeconds on a daemon thread, to
+	 * pick up writes from other clients.
+	 *
+	 * @param esql the database connection
+	 * @param intervalSeconds seconds between reloads
+	 */
+	public void startRefresh(final DBproject esql, long intervalSeconds) {
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "seat-inventory-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					warm(esql);
+				} catch (SQLException e) {
+					System.err.println(DBproject.ANSI_RED + "Seat inventory not refreshed: " + e.getMessage() + DBproject.ANSI_RESET);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Slow-query log
+ * ==============
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Logs every helper call slower than the threshold with its SQL, parameters,
+ * duration and row count. For SELECT, INSERT, UPDATE, DELETE and WITH
+ * statements the log also captures the plan of the same statement with the
+ * same parameters, on a background thread over a separate pooled connection,
+ * in a READ ONLY transaction that is always rolled back. Reads are explained
+ * with EXPLAIN (ANALYZE, BUFFERS); statements that write, take row locks or
+ * call nextval get a plain EXPLAIN, so a capture never runs them a second
+ * time. At most explainsPerMinute plans are captured; slow calls past that
+ * are logged without a plan. The log file rotates at maxBytes.
+ *
+ */
+
+public class SlowQueryLog {
+	// statements EXPLAIN ANALYZE would really run a write or lock for, explained without ANALYZE
+	private static final Pattern WRITES = Pattern.compile(
+		"\\b(INSERT|UPDATE|DELETE|MERGE|nextval|setval)\\b|\\bFOR\\s+(NO\\s+KEY\\s+)?(UPDATE|SHARE|KEY\\s+SHARE)\\b",
+		Pattern.CASE_INSENSITIVE);
+	// read_only_sql_transaction
+	private static final String READ_ONLY_VIOLATION = "25006";
+
+	private final DBproject esql;
+	private final long thresholdNanos;
+	private final long explainTimeoutMillis;
+	private final File file;
+	private final long maxBytes;
+	private final int keepFiles;
+	private final ThreadPoolExecutor explainer;
+
+	// token bucket for plan captures
+	private final double explainsPerNano;
+	private final double burst;
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+
+	public SlowQueryLog(DBproject esql, long thresholdMillis, File file, long maxBytes, int keepFiles, int explainsPerMinute, long explainTimeoutMillis) {
+		this.esql = esql;
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.keepFiles = keepFiles;
+		this.explainTimeoutMillis = explainTimeoutMillis;
+		this.explainsPerNano = explainsPerMinute / 60e9;
+		this.burst = Math.max(1, explainsPerMinute);
+		this.tokens = burst;
+		// one capture at a time, a few waiting, the rest logged without a plan
+		this.explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(8), new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "slow-query-explain");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Called after every helper call; logs it if it was slow.
+	 *
+	 * @param sql the SQL template
+	 * @param params the bound values, null for a batch
+	 * @param nanos how long the call took
+	 * @param rowCount rows returned or affected, -1 when the call failed
+	 */
+	public void offer(final String sql, final Object[] params, final long nanos, final long rowCount) {
+		if (nanos < thresholdNanos || sql.regionMatches(true, 0, "EXPLAIN", 0, 7)) {
+			return;
+		}
+		final LocalDateTime at = LocalDateTime.now();
+		String reason = null;
+		if (params == null) {
+			reason = "batch";
+		} else if (!explainable(sql)) {
+			reason = "not an explainable statement";
+		} else if (!takeToken()) {
+			reason = "rate limited";
+		} else {
+			try {
+				explainer.execute(new Runnable() {
+					public void run() {
+						write(at, sql, params, nanos, rowCount, explain(sql, params));
+					}
+				});
+				return;
+			} catch (RejectedExecutionException e) {
+				reason = "capture queue full";
+			}
+		}
+		write(at, sql, params, nanos, rowCount, "not captured (" + reason + ")");
+	}
+
+	private static boolean explainable(String sql) {
+		String head = sql.trim();
+		int end = 0;
+		while (end < head.length() && Character.isLetter(head.charAt(end))) {
+			end++;
+		}
+		switch (head.substring(0, end).toUpperCase()) {
+			case "SELECT":
+			case "INSERT":
+			case "UPDATE":
+			case "DELETE":
+			case "WITH":
+			case "VALUES":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private synchronized boolean takeToken() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledAt) * explainsPerNano);
+		refilledAt = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+
+	// runs on the explainer thread, so the helpers lease their own connection
+	private String explain(String sql, Object[] params) {
+		boolean analyze = !WRITES.matcher(sql).find();
+		try {
+			return explain(sql, params, analyze);
+		} catch (SQLException e) {
+			if (analyze && READ_ONLY_VIOLATION.equals(e.getSQLState())) {
+				// it writes after all, e.g. through a function; plan it without running it
+				try {
+					return explain(sql, params, false);
+				} catch (SQLException planFailure) {
+					e = planFailure;
+				}
+			}
+			return "not captured (" + e.getMessage().replace('\n', ' ') + ")";
+		}
+	}
+
+	private String explain(String sql, Object[] params, boolean analyze) throws SQLException {
+		esql.beginTransaction();
+		try {
+			// DML, nextval and FOR UPDATE fail in a read-only transaction instead of running
+			esql.execute("SET TRANSACTION READ ONLY");
+			esql.execute("SET LOCAL statement_timeout = " + explainTimeoutMillis);
+			List<List<String>> plan = esql.executeQueryAndReturnResult((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql, params);
+			StringBuilder text = new StringBuilder(analyze ? "" : "(without ANALYZE, the statement writes)");
+			for (List<String> line : plan) {
+				text.append("\n  ").append(line.get(0));
+			}
+			return text.toString();
+		} finally {
+			esql.rollbackTransaction();
+		}
+	}
+
+	private synchronized void write(LocalDateTime at, String sql, Object[] params, long nanos, long rowCount, String plan) {
+		try {
+			rotate();
+			PrintWriter out = new PrintWriter(new FileWriter(file, true));
+			try {
+				out.println(String.format("%s slow query %.1f ms, %s", at, nanos / 1e6, rowCount < 0 ? "failed" : rowCount + " rows"));
+				out.println("sql: " + sql.replaceAll("\\s+", " ").trim());
+				out.println("params: " + (params == null ? "(batch)" : format(params)));
+				out.println("plan: " + plan);
+				out.println();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to write the slow-query log " + file + ": " + e.getMessage());
+		}
+	}
+
+	// file -> file.1 -> file.2 ... up to keepFiles old files
+	private void rotate() {
+		if (file.length() < maxBytes) {
+			return;
+		}
+		new File(file.getPath() + "." + keepFiles).delete();
+		for (int i = keepFiles - 1; i >= 1; i--) {
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		file.renameTo(new File(file.getPath() + ".1"));
+	}
+
+	private static String format(Object[] params) {
+		StringBuilder text = new StringBuilder("[");
+		for (int i = 0; i < params.length; i++) {
+			if (i > 0) {
+				text.append(", ");
+			}
+			Object value = params[i];
+			String shown = value instanceof int[] ? Arrays.toString((int[]) value) : String.valueOf(value);
+			text.append(shown.length() > 200 ? shown.substring(0, 200) + "..." : shown);
+		}
+		return text.append("]").toString();
+	}
+
+	/**
+	 * Waits briefly for captures in progress, then stops.
+	 */
+	public void close() {
+		explainer.shutdown();
+		try {
+			explainer.awaitTermination(Math.min(explainTimeoutMillis, 5000), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
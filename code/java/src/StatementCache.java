@@ -0,0 +1,95 @@
+/*
+ * Prepared statement cache
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the most recently used PreparedStatements of one
+ * connection keyed by their SQL template. Statements are prepared on the
+ * server on first use, so repeated calls skip parsing and planning.
+ * The least recently used statement is closed once the cache is full.
+ *
+ */
+
+public class StatementCache {
+	private final Connection connection;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+
+	public StatementCache(Connection connection, final int capacity) {
+		this.connection = connection;
+		// access order turns the map into an LRU list
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > capacity) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached statement for the template, preparing it if needed.
+	 * The statement stays owned by the cache and must not be closed.
+	 *
+	 * @param sql the SQL template with ? placeholders
+	 * @return the prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if (ps != null && !ps.isClosed()) {
+			hits++;
+			ps.clearParameters();
+			return ps;
+		}
+		misses++;
+		ps = connection.prepareStatement(sql);
+		// use a named server-side statement from the first execution on
+		ps.unwrap(PGStatement.class).setPrepareThreshold(1);
+		statements.put(sql, ps);
+		return ps;
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * Closes every cached statement.
+	 */
+	public void clear() {
+		for (PreparedStatement ps : statements.values()) {
+			closeQuietly(ps);
+		}
+		statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Typed, column-oriented query result
+ * ===================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class holds a query result column by column. Integer columns are
+ * read with getInt/getLong into primitive arrays, CHAR columns are stored
+ * as dictionary codes, and everything else falls back to strings. Reading
+ * a count or a seat number therefore never goes through a String.
+ *
+ */
+
+public class TypedResult {
+	private static final int INT = 0;
+	private static final int LONG = 1;
+	private static final int DICT = 2;
+	private static final int TEXT = 3;
+
+	private final String[] names;
+	private final int[] kinds;
+	private final int[][] ints;
+	private final long[][] longs;
+	private final String[][] texts;
+	private final boolean[][] nulls;
+	// per column dictionary for CHAR values, code -> value and value -> code
+	private final List<List<String>> dictValues;
+	private final List<HashMap<String, Integer>> dictCodes;
+	private int rows = 0;
+	private int capacity = 16;
+
+	private TypedResult(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		names = new String[numCol];
+		kinds = new int[numCol];
+		ints = new int[numCol][];
+		longs = new long[numCol][];
+		texts = new String[numCol][];
+		nulls = new boolean[numCol][];
+		dictValues = new ArrayList<List<String>>(numCol);
+		dictCodes = new ArrayList<HashMap<String, Integer>>(numCol);
+
+		for (int c = 0; c < numCol; c++) {
+			names[c] = rsmd.getColumnName(c + 1);
+			switch (rsmd.getColumnType(c + 1)) {
+				case Types.INTEGER:
+				case Types.SMALLINT:
+				case Types.TINYINT:
+					kinds[c] = INT;
+					ints[c] = new int[16];
+					break;
+				case Types.BIGINT:
+					kinds[c] = LONG;
+					longs[c] = new long[16];
+					break;
+				case Types.CHAR:
+					kinds[c] = DICT;
+					ints[c] = new int[16];
+					break;
+				default:
+					kinds[c] = TEXT;
+					texts[c] = new String[16];
+					break;
+			}
+			nulls[c] = new boolean[16];
+			dictValues.add(kinds[c] == DICT ? new ArrayList<String>() : null);
+			dictCodes.add(kinds[c] == DICT ? new HashMap<String, Integer>() : null);
+		}
+	}
+
+	/**
+	 * Reads every row of the result set into a new TypedResult.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @return the typed result
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public static TypedResult read(ResultSet rs) throws SQLException {
+		TypedResult result = new TypedResult(rs.getMetaData());
+		while (rs.next()) {
+			result.add(rs);
+		}
+		return result;
+	}
+
+	private void add(ResultSet rs) throws SQLException {
+		if (rows == capacity) {
+			capacity *= 2;
+			grow(capacity);
+		}
+		for (int c = 0; c < kinds.length; c++) {
+			switch (kinds[c]) {
+				case INT:
+					ints[c][rows] = rs.getInt(c + 1);
+					break;
+				case LONG:
+					longs[c][rows] = rs.getLong(c + 1);
+					break;
+				case DICT:
+					String value = rs.getString(c + 1);
+					ints[c][rows] = value == null ? -1 : encode(c, value);
+					break;
+				default:
+					texts[c][rows] = rs.getString(c + 1);
+					break;
+			}
+			nulls[c][rows] = rs.wasNull();
+		}
+		rows++;
+	}
+
+	private int encode(int c, String value) {
+		HashMap<String, Integer> codes = dictCodes.get(c);
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = codes.size();
+			codes.put(value, code);
+			dictValues.get(c).add(value);
+		}
+		return code;
+	}
+
+	private void grow(int capacity) {
+		for (int c = 0; c < kinds.length; c++) {
+			if (ints[c] != null) ints[c] = Arrays.copyOf(ints[c], capacity);
+			if (longs[c] != null) longs[c] = Arrays.copyOf(longs[c], capacity);
+			if (texts[c] != null) texts[c] = Arrays.copyOf(texts[c], capacity);
+			nulls[c] = Arrays.copyOf(nulls[c], capacity);
+		}
+	}
+
+	public int size() {
+		return rows;
+	}
+
+	/**
+	 * @return the approximate bytes of row data held, for metrics
+	 */
+	public long estimatedBytes() {
+		long bytes = 0;
+		for (int c = 0; c < kinds.length; c++) {
+			bytes += rows;
+			switch (kinds[c]) {
+				case LONG:
+					bytes += 8L * rows;
+					break;
+				case TEXT:
+					for (int row = 0; row < rows; row++) {
+						if (texts[c][row] != null) bytes += 2L * texts[c][row].length();
+					}
+					break;
+				default:
+					bytes += 4L * rows;
+					break;
+			}
+		}
+		return bytes;
+	}
+
+	public int columnCount() {
+		return kinds.length;
+	}
+
+	public String columnName(int col) {
+		return names[col];
+	}
+
+	public boolean isNull(int row, int col) {
+		check(row);
+		return nulls[col][row];
+	}
+
+	/**
+	 * @return the value of an integer column, 0 for NULL
+	 */
+	public int getInt(int row, int col) {
+		check(row);
+		switch (kinds[col]) {
+			case INT:
+				return ints[col][row];
+			case LONG:
+				return Math.toIntExact(longs[col][row]);
+			default:
+				throw new IllegalArgumentException("Column " + names[col] + " is not an integer column.");
+		}
+	}
+
+	/**
+	 * @return the value of an integer column, 0 for NULL
+	 */
+	public long getLong(int row, int col) {
+		check(row);
+		switch (kinds[col]) {
+			case INT:
+				return ints[col][row];
+			case LONG:
+				return longs[col][row];
+			default:
+				throw new IllegalArgumentException("Column " + names[col] + " is not an integer column.");
+		}
+	}
+
+	/**
+	 * @return the dictionary code of a CHAR value, -1 for NULL
+	 */
+	public int getCode(int row, int col) {
+		check(row);
+		if (kinds[col] != DICT) {
+			throw new IllegalArgumentException("Column " + names[col] + " is not a CHAR column.");
+		}
+		return ints[col][row];
+	}
+
+	/**
+	 * @return the value of any column as a string, null for NULL
+	 */
+	public String getString(int row, int col) {
+		check(row);
+		if (nulls[col][row]) {
+			return null;
+		}
+		switch (kinds[col]) {
+			case INT:
+				return Integer.toString(ints[col][row]);
+			case LONG:
+				return Long.toString(longs[col][row]);
+			case DICT:
+				return dictValues.get(col).get(ints[col][row]);
+			default:
+				return texts[col][row];
+		}
+	}
+
+	private void check(int row) {
+		if (row < 0 || row >= rows) {
+			throw new IndexOutOfBoundsException("Row " + row + " out of " + rows);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Waitlist promotion
+ * ==================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Promotes waitlisted (W) reservations to confirmed (C) in rnum order when
+ * a cruise has free seats. A set of cruises is promoted by one statement,
+ * and so in one transaction: the cruise rows are locked, the first
+ * seats-minus-sold W reservations of each cruise are read from the partial
+ * index reservation_waitlist (see sql/waitlist.sql), confirmed, and added to
+ * num_sold.
+ *
+ * As a listener, it waits for the cruise_capacity notifications raised by
+ * the triggers in sql/waitlist.sql and promotes the cruises named in them.
+ * As a sweep, it finds every cruise with free seats and a waitlist and
+ * promotes them batchSize cruises per transaction; the sweep only touches
+ * W rows, so its cost follows the waitlists, not the Reservation table.
+ *
+ */
+
+public class WaitlistPromoter {
+	public static final String CHANNEL = "cruise_capacity";
+
+	private static final String PROMOTE =
+		"WITH locked AS (" +
+		"SELECT C.cnum, S.seats - C.num_sold AS free FROM Cruise C, CruiseInfo CI, Ship S " +
+		"WHERE C.cnum = ANY (?) AND CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.num_sold < S.seats " +
+		"ORDER BY C.cnum FOR UPDATE OF C" +
+		"), picked AS (" +
+		"SELECT P.rnum FROM locked L CROSS JOIN LATERAL (" +
+		"SELECT W.rnum FROM Reservation W WHERE W.cid = L.cnum AND W.status = 'W' ORDER BY W.rnum LIMIT L.free) P" +
+		"), promoted AS (" +
+		"UPDATE Reservation R SET status = 'C' FROM picked P WHERE R.rnum = P.rnum AND R.status = 'W' RETURNING R.cid" +
+		"), counts AS (" +
+		"SELECT cid, COUNT(*) AS n FROM promoted GROUP BY cid" +
+		") " +
+		"UPDATE Cruise C SET num_sold = C.num_sold + counts.n FROM counts WHERE C.cnum = counts.cid " +
+		"RETURNING C.cnum, C.num_sold, counts.n";
+
+	private static final String CANDIDATES =
+		"SELECT C.cnum FROM Cruise C, CruiseInfo CI, Ship S " +
+		"WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.num_sold < S.seats " +
+		"AND EXISTS (SELECT 1 FROM Reservation W WHERE W.cid = C.cnum AND W.status = 'W') ORDER BY C.cnum";
+
+	/**
+	 * Totals of one sweep.
+	 */
+	public static class Summary {
+		public int cruises = 0;
+		public int promoted = 0;
+		public double seconds = 0;
+
+		public String toString() {
+			return String.format("%d reservations promoted on %d cruises in %.2f s", promoted, cruises, seconds);
+		}
+	}
+
+	private final DBproject esql;
+	private final int batchSize;
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	public WaitlistPromoter(DBproject esql, int batchSize) {
+		this.esql = esql;
+		this.batchSize = batchSize;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + WaitlistPromoter.class.getName() +
+				" <dbname> <port> <user> [--listen] [--batch 500]");
+			return;
+		}
+		boolean listen = false;
+		int batchSize = 500;
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("--listen")) {
+				listen = true;
+			} else if (args[i].equals("--batch")) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+				return;
+			}
+		}
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			if (listen) {
+				// sweeps once on start, then follows the notifications until killed
+				new WaitlistPromoter(esql, batchSize).run();
+			} else {
+				System.out.println(sweep(esql, batchSize));
+			}
+		} finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Promotes the waitlists of the given cruises in one transaction.
+	 *
+	 * @param esql the database connection
+	 * @param cruiseNumbers the cruises whose seats may have freed up
+	 * @return the number of reservations confirmed
+	 * @throws java.sql.SQLException when the promotion failed; nothing is promoted then
+	 */
+	public static int promote(DBproject esql, int... cruiseNumbers) throws SQLException {
+		return promoted(esql, promoteRows(esql, cruiseNumbers));
+	}
+
+	/**
+	 * Runs the promotion without touching the caches, for callers that do
+	 * it inside their own transaction and report it once that commits.
+	 *
+	 * @return cnum, num_sold and confirmed count of each promoted cruise
+	 */
+	static TypedResult promoteRows(DBproject esql, int... cruiseNumbers) throws SQLException {
+		return esql.executeQueryAndReturnTyped(PROMOTE, cruiseNumbers);
+	}
+
+	/**
+	 * Notes a committed promotion in the seat inventory and counters.
+	 *
+	 * @return the number of reservations confirmed
+	 */
+	static int promoted(DBproject esql, TypedResult promoted) {
+		int total = 0;
+		for (int row = 0; row < promoted.size(); row++) {
+			int cruise = promoted.getInt(row, 0);
+			int confirmed = promoted.getInt(row, 2);
+			esql.inventory().setSold(cruise, promoted.getInt(row, 1));
+			esql.counters().add(cruise, "W", -confirmed);
+			esql.counters().add(cruise, "C", confirmed);
+			total += confirmed;
+		}
+		return total;
+	}
+
+	/**
+	 * Promotes the waitlist of every cruise that has free seats.
+	 *
+	 * @param esql the database connection
+	 * @param batchSize cruises promoted per transaction
+	 * @return the totals of the sweep
+	 * @throws java.sql.SQLException when a batch failed; earlier batches stay promoted
+	 */
+	public static Summary sweep(DBproject esql, int batchSize) throws SQLException {
+		Summary summary = new Summary();
+		long start = System.nanoTime();
+		TypedResult candidates = esql.executeQueryAndReturnTyped(CANDIDATES);
+		summary.cruises = candidates.size();
+		for (int from = 0; from < candidates.size(); from += batchSize) {
+			int[] batch = new int[Math.min(batchSize, candidates.size() - from)];
+			for (int i = 0; i < batch.length; i++) {
+				batch[i] = candidates.getInt(from + i, 0);
+			}
+			summary.promoted += promote(esql, batch);
+		}
+		summary.seconds = (System.nanoTime() - start) / 1e9;
+		return summary;
+	}
+
+	/**
+	 * Starts listening on a daemon thread. The listener holds one pooled
+	 * connection for as long as it runs.
+	 */
+	public void start() {
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				WaitlistPromoter.this.run();
+			}
+		}, "waitlist-promoter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the listener started by start() and waits for it to let go of
+	 * its connection.
+	 */
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			try {
+				thread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	// listens for cruise_capacity until stopped, reconnecting after errors
+	private void run() {
+		running = true;
+		while (running) {
+			try {
+				esql.pinConnection();
+				try {
+					esql.execute("LISTEN " + CHANNEL);
+					// seats freed while nobody was listening
+					sweep(esql, batchSize);
+					while (running) {
+						List<String> payloads = esql.awaitNotifications(1000);
+						if (payloads.isEmpty()) {
+							continue;
+						}
+						TreeSet<Integer> cruises = new TreeSet<Integer>();
+						for (String payload : payloads) {
+							try {
+								cruises.add(Integer.parseInt(payload.trim()));
+							} catch (NumberFormatException e) {
+								// not ours, ignored
+							}
+						}
+						int[] batch = new int[cruises.size()];
+						int i = 0;
+						for (int cruise : cruises) {
+							batch[i++] = cruise;
+						}
+						promote(esql, batch);
+					}
+				} finally {
+					try {
+						esql.execute("UNLISTEN *");
+					} catch (SQLException e) {
+						// ignored, the pool discards broken connections.
+					}
+					esql.unpinConnection();
+				}
+			} catch (SQLException e) {
+				System.err.println(DBproject.ANSI_RED + "Waitlist promotion: " + e.getMessage() + DBproject.ANSI_RESET);
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+}
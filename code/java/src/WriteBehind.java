@@ -0,0 +1,256 @@
+/*
+ * Write-behind insert queue
+ * =========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues single-row inserts (options 1, 2, 3 and 8) and writes them in
+ * groups: a group is written as soon as batchSize rows are waiting, or when
+ * the oldest waiting row is windowMillis old. Each group is one transaction
+ * holding one JDBC batch per statement, which the driver sends as multi-row
+ * INSERTs (reWriteBatchedInserts), so a group costs a few round trips and
+ * one commit instead of one of each per row.
+ *
+ * Every insert returns a future that completes once its row is committed,
+ * or fails with the row's own error. When a group fails, its rows are
+ * retried one at a time, so one bad row (e.g. a duplicate key) fails only
+ * its own future. At most maxQueued rows wait; further inserts block until
+ * there is room.
+ *
+ */
+
+public class WriteBehind {
+	private static class Pending {
+		final String sql;
+		final Object[] params;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		final long queuedAt = System.nanoTime();
+
+		Pending(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	private final DBproject esql;
+	private final int batchSize;
+	private final long windowNanos;
+	private final Semaphore room;
+	private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+	private final Thread writer;
+	// guarded by this
+	private boolean closed = false;
+	private int writing = 0;
+	private int flushRequests = 0;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong groups = new AtomicLong();
+
+	public WriteBehind(DBproject esql, int batchSize, long windowMillis, int maxQueued) {
+		this.esql = esql;
+		this.batchSize = batchSize;
+		this.windowNanos = windowMillis * 1000000L;
+		this.room = new Semaphore(maxQueued);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "write-behind");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues one insert, waiting while the queue is full.
+	 *
+	 * @param sql the INSERT statement, with ? for each parameter
+	 * @param params values bound to the ? placeholders in order
+	 * @return completes when the row is committed
+	 * @throws java.lang.InterruptedException when interrupted while the queue is full
+	 */
+	public CompletableFuture<Void> insert(String sql, Object... params) throws InterruptedException {
+		room.acquire();
+		Pending pending = new Pending(sql, params);
+		synchronized (this) {
+			if (closed) {
+				room.release();
+				throw new IllegalStateException("The write-behind queue is closed.");
+			}
+			queue.add(pending);
+			if (queue.size() == 1 || queue.size() >= batchSize) {
+				notifyAll();
+			}
+		}
+		if (esql.replicas() != null) {
+			// reads on this thread go to the primary until the row is surely written
+			esql.setLastWrite(System.nanoTime() + windowNanos);
+		}
+		return pending.done;
+	}
+
+	/**
+	 * Writes everything queued so far without waiting for the window, and
+	 * returns when it is committed or failed.
+	 *
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public synchronized void flush() throws InterruptedException {
+		flushRequests++;
+		notifyAll();
+		try {
+			while (!queue.isEmpty() || writing > 0) {
+				wait();
+			}
+		} finally {
+			flushRequests--;
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			List<Pending> group = new ArrayList<Pending>(batchSize);
+			synchronized (this) {
+				try {
+					while (queue.isEmpty() && !closed) {
+						wait();
+					}
+					// gather until the group is full, the oldest row is due or someone flushes
+					long due = queue.isEmpty() ? 0 : queue.peek().queuedAt + windowNanos;
+					while (queue.size() < batchSize && !closed && flushRequests == 0) {
+						long left = due - System.nanoTime();
+						if (left <= 0) {
+							break;
+						}
+						wait(left / 1000000L, (int) (left % 1000000L));
+					}
+				} catch (InterruptedException e) {
+					// stop accepting and write what is left
+					closed = true;
+				}
+				if (queue.isEmpty()) {
+					notifyAll();
+					return;
+				}
+				while (group.size() < batchSize && !queue.isEmpty()) {
+					group.add(queue.poll());
+				}
+				writing++;
+			}
+			try {
+				write(group);
+			} finally {
+				room.release(group.size());
+				synchronized (this) {
+					writing--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	// one transaction, one batch per statement in the order the statements were first queued
+	private void write(List<Pending> group) {
+		Map<String, List<Pending>> byStatement = new LinkedHashMap<String, List<Pending>>();
+		for (Pending pending : group) {
+			List<Pending> rows = byStatement.get(pending.sql);
+			if (rows == null) {
+				rows = new ArrayList<Pending>();
+				byStatement.put(pending.sql, rows);
+			}
+			rows.add(pending);
+		}
+		try {
+			esql.beginTransaction();
+			try {
+				for (Map.Entry<String, List<Pending>> entry : byStatement.entrySet()) {
+					List<Object[]> params = new ArrayList<Object[]>(entry.getValue().size());
+					for (Pending pending : entry.getValue()) {
+						params.add(pending.params);
+					}
+					esql.executeBatch(entry.getKey(), params);
+				}
+				esql.commitTransaction();
+			} catch (SQLException e) {
+				esql.rollbackTransaction();
+				throw e;
+			}
+			groups.incrementAndGet();
+			written.addAndGet(group.size());
+			for (Pending pending : group) {
+				pending.done.complete(null);
+			}
+		} catch (SQLException e) {
+			// find the rows at fault
+			for (Pending pending : group) {
+				try {
+					esql.executeUpdate(pending.sql, pending.params);
+					written.incrementAndGet();
+					pending.done.complete(null);
+				} catch (SQLException rowFailure) {
+					failed.incrementAndGet();
+					pending.done.completeExceptionally(rowFailure);
+				}
+			}
+		} catch (RuntimeException e) {
+			failed.addAndGet(group.size());
+			for (Pending pending : group) {
+				pending.done.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * @return rows committed so far
+	 */
+	public long written() {
+		return written.get();
+	}
+
+	/**
+	 * @return rows whose insert failed
+	 */
+	public long failed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return groups committed in one transaction
+	 */
+	public long groups() {
+		return groups.get();
+	}
+
+	public synchronized int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops taking inserts and waits until the queued ones are written.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -9,4 +9,24 @@ cp ../data/*.csv /tmp/$USER/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+
+echo "Creating booking sequences .. "
+sleep 1
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/booking.sql
+
+echo "Creating id blocks .. "
+sleep 1
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/id_blocks.sql
+
+echo "Creating waitlist triggers .. "
+sleep 1
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/waitlist.sql
+
+echo "Creating repair counts .. "
+sleep 1
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/repairs.sql
+
+echo "Creating reservation counts .. "
+sleep 1
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/reservation_counts.sql
@@ -0,0 +1,26 @@
+#! /bin/bash
+# Starts a streaming replica of the database started by startPostgreSQL.sh,
+# for trying out -Dcruise.replica.urls on one machine.
+# Example: source ./startReplica.sh 9998
+folder=/tmp/$USER
+REPLICA_PORT=${1:-9998}
+export REPLICA_DATA=$folder/replica/data
+REPLICA_SOCKETS=$folder/replica/sockets
+
+echo "Replica on port "$REPLICA_PORT
+
+#Clear folder
+rm -rf $folder/replica
+
+#Initialize folders
+mkdir $folder/replica
+mkdir $folder/replica/sockets
+sleep 1
+
+#Copy the primary; -R configures the copy to follow it as a hot standby
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -X stream -R
+chmod 700 $REPLICA_DATA
+
+sleep 1
+#Start folder
+pg_ctl -o "-c unix_socket_directories=$REPLICA_SOCKETS -p $REPLICA_PORT -c hot_standby=on" -D $REPLICA_DATA -l $folder/replica/logfile start
@@ -0,0 +1,12 @@
+-----------------------------
+---RESERVATION NUMBERS-------
+-----------------------------
+-- Reservation numbers come from a sequence instead of MAX(rnum)+1 so that
+-- concurrent bookings never pick the same rnum.
+DROP SEQUENCE IF EXISTS reservation_rnum_seq;
+CREATE SEQUENCE reservation_rnum_seq OWNED BY Reservation.rnum;
+
+-- start after the rows loaded by create.sql
+SELECT setval('reservation_rnum_seq', COALESCE((SELECT MAX(rnum) FROM Reservation), 0) + 1, false);
+
+ALTER TABLE Reservation ALTER COLUMN rnum SET DEFAULT nextval('reservation_rnum_seq');
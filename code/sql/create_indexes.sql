@@ -17,3 +17,8 @@ CREATE INDEX ship_id
 ON Ship
 USING BTREE
 (id);
+
+CREATE INDEX schedule_departure
+ON Schedule
+USING BTREE
+(departure_time);
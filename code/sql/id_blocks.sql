@@ -0,0 +1,18 @@
+-----------------------------
+---ID BLOCKS-----------------
+-----------------------------
+-- Reservation numbers and customer ids are handed out by the program in
+-- blocks (see IdAllocator.java): one nextval reserves the next INCREMENT BY
+-- ids for one client, which then numbers its inserts from memory. Rows
+-- inserted by other clients through the column defaults still get unique
+-- ids, at the price of a gap per row.
+ALTER SEQUENCE reservation_rnum_seq INCREMENT BY 100;
+SELECT setval('reservation_rnum_seq', COALESCE((SELECT MAX(rnum) FROM Reservation), 0) + 1, false);
+
+DROP SEQUENCE IF EXISTS customer_id_seq;
+CREATE SEQUENCE customer_id_seq INCREMENT BY 100 OWNED BY Customer.id;
+
+-- start after the rows already there
+SELECT setval('customer_id_seq', COALESCE((SELECT MAX(id) FROM Customer), 0) + 1, false);
+
+ALTER TABLE Customer ALTER COLUMN id SET DEFAULT nextval('customer_id_seq');
@@ -0,0 +1,53 @@
+-----------------------------
+---REPAIRS PER SHIP----------
+-----------------------------
+-- Option 6 reads repair counts from ShipRepairCount instead of grouping the
+-- whole Repairs table. A trigger keeps the counts current on every insert,
+-- delete, ship change and truncate of Repairs; the index keeps them sorted.
+DROP TABLE IF EXISTS ShipRepairCount;
+CREATE TABLE ShipRepairCount
+(
+	ship_id INTEGER NOT NULL,
+	repairs INTEGER NOT NULL,
+	PRIMARY KEY (ship_id)
+);
+
+CREATE INDEX ship_repair_count_repairs
+ON ShipRepairCount
+USING BTREE
+(repairs DESC, ship_id);
+
+CREATE OR REPLACE FUNCTION count_ship_repairs() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		DELETE FROM ShipRepairCount;
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'UPDATE' AND NEW.ship_id = OLD.ship_id THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		UPDATE ShipRepairCount SET repairs = repairs - 1 WHERE ship_id = OLD.ship_id;
+		DELETE FROM ShipRepairCount WHERE ship_id = OLD.ship_id AND repairs <= 0;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO ShipRepairCount (ship_id, repairs) VALUES (NEW.ship_id, 1)
+		ON CONFLICT (ship_id) DO UPDATE SET repairs = ShipRepairCount.repairs + 1;
+	END IF;
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS ship_repair_count ON Repairs;
+CREATE TRIGGER ship_repair_count
+AFTER INSERT OR DELETE OR UPDATE OF ship_id ON Repairs
+FOR EACH ROW EXECUTE PROCEDURE count_ship_repairs();
+
+DROP TRIGGER IF EXISTS ship_repair_count_truncate ON Repairs;
+CREATE TRIGGER ship_repair_count_truncate
+AFTER TRUNCATE ON Repairs
+FOR EACH STATEMENT EXECUTE PROCEDURE count_ship_repairs();
+
+-- counts of the rows already loaded
+INSERT INTO ShipRepairCount (ship_id, repairs)
+SELECT ship_id, COUNT(*) FROM Repairs GROUP BY ship_id;
@@ -0,0 +1,49 @@
+-----------------------------
+---RESERVATIONS PER STATUS---
+-----------------------------
+-- Option 7 and booking read how many reservations a cruise has with a given
+-- status from ReservationCount instead of counting Reservation. A trigger
+-- keeps the counts current in the same transaction as every insert, delete,
+-- status or cruise change and truncate of Reservation.
+DROP TABLE IF EXISTS ReservationCount;
+CREATE TABLE ReservationCount
+(
+	cid INTEGER NOT NULL,
+	status CHAR(1) NOT NULL,
+	reservations INTEGER NOT NULL,
+	PRIMARY KEY (cid, status)
+);
+
+CREATE OR REPLACE FUNCTION count_reservations() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		DELETE FROM ReservationCount;
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'UPDATE' AND NEW.cid = OLD.cid AND NEW.status IS NOT DISTINCT FROM OLD.status THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') AND OLD.status IS NOT NULL THEN
+		UPDATE ReservationCount SET reservations = reservations - 1 WHERE cid = OLD.cid AND status = OLD.status;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.status IS NOT NULL THEN
+		INSERT INTO ReservationCount (cid, status, reservations) VALUES (NEW.cid, NEW.status, 1)
+		ON CONFLICT (cid, status) DO UPDATE SET reservations = ReservationCount.reservations + 1;
+	END IF;
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS reservation_count ON Reservation;
+CREATE TRIGGER reservation_count
+AFTER INSERT OR DELETE OR UPDATE OF cid, status ON Reservation
+FOR EACH ROW EXECUTE PROCEDURE count_reservations();
+
+DROP TRIGGER IF EXISTS reservation_count_truncate ON Reservation;
+CREATE TRIGGER reservation_count_truncate
+AFTER TRUNCATE ON Reservation
+FOR EACH STATEMENT EXECUTE PROCEDURE count_reservations();
+
+-- counts of the rows already loaded
+INSERT INTO ReservationCount (cid, status, reservations)
+SELECT cid, status, COUNT(*) FROM Reservation WHERE status IS NOT NULL GROUP BY cid, status;
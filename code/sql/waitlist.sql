@@ -0,0 +1,55 @@
+-----------------------------
+---WAITLIST PROMOTION--------
+-----------------------------
+-- The waitlist of a cruise is its W reservations in rnum order. Only W rows
+-- are indexed, so finding the head of a waitlist, or every cruise that has
+-- one, never reads the confirmed and reserved rows.
+DROP INDEX IF EXISTS reservation_waitlist;
+CREATE INDEX reservation_waitlist
+ON Reservation
+USING BTREE
+(cid, rnum)
+WHERE status = 'W';
+
+-- Seats free up when num_sold goes down, a ship gets more seats, or a cruise
+-- gets a (different) ship. Each of these notifies cruise_capacity with the
+-- cruise number; WaitlistPromoter listens and promotes that cruise.
+CREATE OR REPLACE FUNCTION notify_cruise_capacity() RETURNS trigger AS $$
+BEGIN
+	IF NEW.num_sold < OLD.num_sold THEN
+		PERFORM pg_notify('cruise_capacity', NEW.cnum::text);
+	END IF;
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_ship_capacity() RETURNS trigger AS $$
+BEGIN
+	IF NEW.seats > OLD.seats THEN
+		PERFORM pg_notify('cruise_capacity', CI.cruise_id::text) FROM CruiseInfo CI WHERE CI.ship_id = NEW.id;
+	END IF;
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_cruiseinfo_capacity() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('cruise_capacity', NEW.cruise_id::text);
+	RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS cruise_capacity ON Cruise;
+CREATE TRIGGER cruise_capacity
+AFTER UPDATE OF num_sold ON Cruise
+FOR EACH ROW EXECUTE PROCEDURE notify_cruise_capacity();
+
+DROP TRIGGER IF EXISTS ship_capacity ON Ship;
+CREATE TRIGGER ship_capacity
+AFTER UPDATE OF seats ON Ship
+FOR EACH ROW EXECUTE PROCEDURE notify_ship_capacity();
+
+DROP TRIGGER IF EXISTS cruiseinfo_capacity ON CruiseInfo;
+CREATE TRIGGER cruiseinfo_capacity
+AFTER INSERT OR UPDATE OF ship_id ON CruiseInfo
+FOR EACH ROW EXECUTE PROCEDURE notify_cruiseinfo_capacity();